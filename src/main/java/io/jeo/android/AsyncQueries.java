@@ -0,0 +1,189 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import android.os.CancellationSignal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import io.jeo.android.SQLiteBackend.SQLiteResults;
+import io.jeo.android.SQLiteBackend.SQLiteSession;
+
+/**
+ * Runs queries against a {@link SQLiteBackend} on a bounded pool of background threads.
+ * <p>
+ * Each query runs in its own read only session and returns a {@link Future}. Cancelling the
+ * future, or calling {@link #cancelAll()}, aborts the query through a {@link CancellationSignal}
+ * even while SQLite is stepping it, so that queries for a view that is no longer visible stop
+ * competing with current ones.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * AsyncQueries async = backend.async();
+ * Future&lt;Integer> count = async.query(new AsyncQueries.Handler&lt;Integer>() {
+ *     public Integer handle(SQLiteResults rs) throws IOException {
+ *         return rs.next() ? rs.getInt(0) : 0;
+ *     }
+ * }, "SELECT count(*) FROM roads");
+ * </code></pre>
+ * </p>
+ */
+public class AsyncQueries {
+
+    /**
+     * Processes the results of a query on the background thread.
+     */
+    public interface Handler<T> {
+        T handle(SQLiteResults results) throws IOException;
+    }
+
+    final SQLiteBackend backend;
+    final ExecutorService executor;
+
+    /** queries submitted and not yet complete */
+    final Set<QueryTask<?>> pending =
+        Collections.newSetFromMap(new ConcurrentHashMap<QueryTask<?>, Boolean>());
+
+    public AsyncQueries(SQLiteBackend backend, int threads) {
+        this.backend = backend;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Runs a query, the results are handed to the handler on the background thread and closed
+     * once it returns.
+     */
+    public <T> Future<T> query(final Handler<T> handler, final String sql, final Object... args) {
+        final CancellationSignal signal = new CancellationSignal();
+        return submit(new QueryTask<T>(signal, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                SQLiteSession session = backend.readSession();
+                try {
+                    SQLiteResults rs = session.queryPrepared(signal, sql, args);
+                    try {
+                        return handler.handle(rs);
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    session.close();
+                }
+            }
+        }));
+    }
+
+    /**
+     * Runs a query, returning the open results once the first rows have been read.
+     * <p>
+     * The caller is responsible for closing the results. Rows beyond the first cursor window are
+     * read on the calling thread.
+     * </p>
+     */
+    public Future<SQLiteResults> query(final String sql, final Object... args) {
+        final CancellationSignal signal = new CancellationSignal();
+        return submit(new QueryTask<SQLiteResults>(signal, new Callable<SQLiteResults>() {
+            @Override
+            public SQLiteResults call() throws Exception {
+                SQLiteSession session = backend.readSession();
+                SQLiteResults rs = null;
+                boolean complete = false;
+                try {
+                    rs = session.queryPrepared(signal, sql, args);
+                    rs.session = session;
+
+                    // force the query to run and fill the first window
+                    rs.cursor.getCount();
+                    signal.throwIfCanceled();
+                    complete = true;
+                    return rs;
+                } finally {
+                    if (!complete) {
+                        // closing the results closes the session along with them
+                        if (rs != null) {
+                            rs.close();
+                        } else {
+                            session.close();
+                        }
+                    }
+                }
+            }
+        }));
+    }
+
+    <T> Future<T> submit(QueryTask<T> task) {
+        pending.add(task);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Cancels all queries not yet complete.
+     */
+    public void cancelAll() {
+        for (QueryTask<?> task : new ArrayList<QueryTask<?>>(pending)) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Cancels all pending queries and stops the background threads.
+     */
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+    }
+
+    class QueryTask<T> extends FutureTask<T> {
+        final CancellationSignal signal;
+
+        QueryTask(CancellationSignal signal, Callable<T> callable) {
+            super(callable);
+            this.signal = signal;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!isDone()) {
+                signal.cancel();
+            }
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void set(T v) {
+            super.set(v);
+            if (isCancelled() && v instanceof SQLiteResults) {
+                // cancelled after the query completed, the results are never handed out
+                ((SQLiteResults) v).close();
+            }
+        }
+
+        @Override
+        protected void done() {
+            pending.remove(this);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Bounded pool of read only connections to a database file.
+ * <p>
+ * Connections are opened lazily up to the maximum size of the pool, after which callers of
+ * {@link #acquire()} block until a connection is released, and callers of
+ * {@link #acquire(long)} for at most the time specified. The pool is only useful when the
+ * database is in write-ahead logging mode, otherwise readers and the writer still lock each other
+ * out at the file level.
+ * </p>
+ */
+public class ConnectionPool {
+
+    /** the database file */
+    final File file;
+
+    /** maximum number of connections */
+    final int size;
+
+    /** storage profile applied to connections, may be <code>null</code> */
+    final StorageProfile profile;
+
+    /** connections not in use */
+    final Deque<SQLiteDatabase> idle = new ArrayDeque<SQLiteDatabase>();
+
+    /** all connections opened by the pool */
+    final List<SQLiteDatabase> all = new ArrayList<SQLiteDatabase>();
+
+    boolean closed = false;
+
+    public ConnectionPool(File file, int size) {
+        this(file, size, null);
+    }
+
+    /**
+     * Creates the pool applying a storage profile to connections as they are opened.
+     */
+    public ConnectionPool(File file, int size, StorageProfile profile) {
+        if (size < 1) {
+            throw new IllegalArgumentException("pool size must be positive: " + size);
+        }
+        this.file = file;
+        this.size = size;
+        this.profile = profile;
+    }
+
+    /**
+     * The maximum number of connections in the pool.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Obtains a connection from the pool, waiting for one to be released if the pool is exhausted.
+     */
+    public synchronized SQLiteDatabase acquire() throws IOException {
+        SQLiteDatabase db = null;
+        while (db == null) {
+            db = acquire(Long.MAX_VALUE);
+        }
+        return db;
+    }
+
+    /**
+     * Obtains a connection from the pool, waiting a bounded time for one to be released if the
+     * pool is exhausted.
+     *
+     * @param timeout The maximum time to wait in milliseconds, <tt>0</tt> to not wait at all.
+     *
+     * @return The connection, or <code>null</code> if none was released in time.
+     */
+    public synchronized SQLiteDatabase acquire(long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        if (deadline < 0) {
+            deadline = Long.MAX_VALUE;
+        }
+        while (!closed) {
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            if (all.size() < size) {
+                SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+                if (profile != null) {
+                    profile.apply(db, true);
+                }
+                all.add(db);
+                return db;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                return null;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted waiting for connection", e);
+            }
+        }
+        throw new IOException("connection pool closed");
+    }
+
+    /**
+     * Returns a connection obtained from {@link #acquire()} to the pool.
+     */
+    public synchronized void release(SQLiteDatabase db) {
+        if (closed) {
+            db.close();
+            return;
+        }
+        idle.push(db);
+        notify();
+    }
+
+    /**
+     * Closes all connections in the pool.
+     * <p>
+     * Connections still in use are closed as they are released.
+     * </p>
+     */
+    public synchronized void close() {
+        closed = true;
+        for (SQLiteDatabase db : idle) {
+            db.close();
+        }
+        idle.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,114 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes the geometry arguments of statements as GeoPackage blobs on a pool of worker threads.
+ * <p>
+ * Argument arrays are submitted in order and taken back, encoded, in the same order, so that the
+ * thread executing the statements only has to bind and step them. Each worker encodes with its
+ * own pooled writer. At most {@link #capacity()} arrays are in flight, {@link #submit(Object[])}
+ * returns the oldest array once that many are pending.
+ * </p>
+ */
+public class GeometryEncoder {
+
+    final ExecutorService executor;
+    final int capacity;
+
+    /** arrays being encoded, oldest first */
+    final Deque<Future<Object[]>> pending = new ArrayDeque<Future<Object[]>>();
+
+    /**
+     * Creates the encoder.
+     *
+     * @param threads Number of worker threads.
+     */
+    public GeometryEncoder(int threads) {
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.capacity = threads * 2;
+    }
+
+    /**
+     * The maximum number of argument arrays being encoded at once.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Submits an argument array for encoding, returning the oldest encoded array if the encoder is
+     * at capacity.
+     *
+     * @return The oldest encoded array, or <code>null</code> if the encoder is not at capacity.
+     */
+    public Object[] submit(final Object[] args) throws IOException {
+        pending.add(executor.submit(new Callable<Object[]>() {
+            @Override
+            public Object[] call() throws Exception {
+                SQLiteBackend.encode(args);
+                return args;
+            }
+        }));
+        return pending.size() > capacity ? take() : null;
+    }
+
+    /**
+     * Determines if any arrays are still being encoded.
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Takes the oldest submitted array, waiting for it to be encoded.
+     */
+    public Object[] take() throws IOException {
+        Future<Object[]> f = pending.poll();
+        if (f == null) {
+            return null;
+        }
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted encoding geometries", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException
+                ? (IOException) cause : new IOException("Error encoding geometries", cause);
+        }
+    }
+
+    /**
+     * Discards pending arrays and stops the worker threads.
+     */
+    public void shutdown() {
+        for (Future<Object[]> f : pending) {
+            f.cancel(true);
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,115 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import io.jeo.geopkg.geom.GeoPkgGeomReader;
+
+/**
+ * Handle to a GeoPackage geometry blob that defers decoding of the geometry.
+ * <p>
+ * The envelope is read from the GeoPackage binary header without touching the WKB body, which is
+ * only decoded when {@link #geometry()} is called. Obtained from query results by requesting
+ * <tt>LazyGeometry.class</tt> as the column type.
+ * </p>
+ * <p>
+ * The jeo GeoPackage driver requests geometry columns as {@link Geometry}, so features read
+ * through the driver are still decoded in full. The handle is used where only bounds are needed,
+ * such as maintaining the spatial indexes in {@link io.jeo.android.geopkg}, and by callers
+ * querying the backend directly.
+ * </p>
+ */
+public class LazyGeometry {
+
+    /** number of envelope ordinates, indexed by the envelope contents indicator */
+    static final int[] ENVELOPE_ORDINATES = {0, 4, 6, 6, 8};
+
+    /**
+     * Reads the envelope from the header of a GeoPackage geometry blob.
+     *
+     * @return The envelope, a null envelope if the geometry is empty, or <code>null</code> if the
+     *   header contains no envelope and the geometry must be decoded to compute one.
+     *
+     * @throws IllegalArgumentException If the blob is not a GeoPackage geometry.
+     */
+    public static Envelope envelope(byte[] blob) {
+        if (blob.length < 8 || blob[0] != 'G' || blob[1] != 'P') {
+            throw new IllegalArgumentException("Not a GeoPackage geometry blob");
+        }
+
+        int flags = blob[3];
+        if ((flags & 0x10) != 0) {
+            return new Envelope();
+        }
+
+        int indicator = (flags >> 1) & 0x07;
+        if (indicator == 0 || indicator >= ENVELOPE_ORDINATES.length) {
+            return null;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(blob, 8, ENVELOPE_ORDINATES[indicator] * 8)
+            .order((flags & 0x01) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        double minx = buf.getDouble();
+        double maxx = buf.getDouble();
+        double miny = buf.getDouble();
+        double maxy = buf.getDouble();
+        return new Envelope(minx, maxx, miny, maxy);
+    }
+
+    final byte[] blob;
+
+    Envelope envelope;
+    Geometry geometry;
+
+    public LazyGeometry(byte[] blob) {
+        this.blob = blob;
+    }
+
+    /**
+     * The raw geometry blob.
+     */
+    public byte[] blob() {
+        return blob;
+    }
+
+    /**
+     * The geometry envelope, read from the blob header when present.
+     */
+    public Envelope envelope() throws IOException {
+        if (envelope == null) {
+            envelope = envelope(blob);
+            if (envelope == null) {
+                envelope = geometry().getEnvelopeInternal();
+            }
+        }
+        return envelope;
+    }
+
+    /**
+     * The decoded geometry, decoded on the first call.
+     */
+    public Geometry geometry() throws IOException {
+        if (geometry == null) {
+            geometry = new GeoPkgGeomReader().read(blob);
+        }
+        return geometry;
+    }
+}
@@ -0,0 +1,304 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.jeo.android.SQLiteBackend.SQLiteResults;
+import io.jeo.util.Pair;
+
+/**
+ * Scans a table in parallel by splitting it into rowid ranges.
+ * <p>
+ * Each range is read and decoded on its own thread over its own read only connection. The
+ * connections are all obtained before the scan starts, from the backend's reader pool when
+ * write-ahead logging is enabled and enough readers are free, or opened for the duration of the
+ * scan otherwise. Rows are merged into a single stream, either in rowid order or in the order they
+ * are decoded. Each row is an array of values in the order of {@link #columns()}.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * ParallelScan scan = new ParallelScan(backend, "parcels", 4, false);
+ * try {
+ *     while (scan.hasNext()) {
+ *         Object[] row = scan.next();
+ *         ...
+ *     }
+ * } finally {
+ *     scan.close();
+ * }
+ * </code></pre>
+ * </p>
+ */
+public class ParallelScan implements Closeable {
+
+    /** number of decoded rows buffered per partition */
+    static final int BUFFER_SIZE = 256;
+
+    /** marks the end of a partition */
+    static final Object[] END = new Object[0];
+
+    final SQLiteBackend backend;
+    final List<Pair<String, Class>> columns;
+
+    /** connections opened for the scan, <code>null</code> when using the backend's readers */
+    final ConnectionPool pool;
+
+    final ExecutorService executor;
+    final List<CancellationSignal> signals = new ArrayList<CancellationSignal>();
+
+    /** row queues, one per partition when ordered, otherwise a single shared one */
+    final List<BlockingQueue<Object[]>> queues = new ArrayList<BlockingQueue<Object[]>>();
+
+    /** first error raised by a partition */
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    /** current queue, and number of partitions still to finish when unordered */
+    int queue = 0;
+    int remaining;
+
+    Object[] next;
+
+    /**
+     * Starts the scan.
+     *
+     * @param backend The backend.
+     * @param table The table to scan.
+     * @param partitions The number of ranges to split the table into, and threads reading them.
+     * @param ordered Whether to return rows in rowid order.
+     */
+    public ParallelScan(SQLiteBackend backend, String table, int partitions, boolean ordered)
+        throws IOException {
+        this.backend = backend;
+        this.columns = backend.getColumnInfo(table);
+
+        long[] range = range(table);
+        long step = range[1] < range[0] ? 1 : (range[1] - range[0]) / partitions + 1;
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(quote(columns.get(i).first));
+        }
+        sql.append(" FROM ").append(quote(table))
+           .append(" WHERE rowid >= ? AND rowid < ? ORDER BY rowid");
+
+        // a partition blocks on its queue while holding its connection, so every partition gets
+        // a connection before any starts, otherwise those waiting for one could never start
+        List<SQLiteDatabase> conns = new ArrayList<SQLiteDatabase>(partitions);
+        if (backend.readers != null) {
+            while (conns.size() < partitions) {
+                SQLiteDatabase db = backend.readers.acquire(0);
+                if (db == null) {
+                    break;
+                }
+                conns.add(db);
+            }
+            if (conns.size() < partitions) {
+                for (SQLiteDatabase db : conns) {
+                    backend.readers.release(db);
+                }
+                conns.clear();
+            }
+        }
+        if (conns.isEmpty()) {
+            pool = new ConnectionPool(backend.file, partitions, backend.profile);
+            try {
+                for (int i = 0; i < partitions; i++) {
+                    conns.add(pool.acquire());
+                }
+            } catch (IOException e) {
+                pool.close();
+                throw e;
+            } catch (RuntimeException e) {
+                pool.close();
+                throw e;
+            }
+        } else {
+            pool = null;
+        }
+
+        executor = Executors.newFixedThreadPool(partitions);
+        remaining = partitions;
+
+        BlockingQueue<Object[]> shared = ordered ? null : new ArrayBlockingQueue<Object[]>(
+            BUFFER_SIZE * partitions);
+        for (int i = 0; i < partitions; i++) {
+            BlockingQueue<Object[]> q =
+                ordered ? new ArrayBlockingQueue<Object[]>(BUFFER_SIZE) : shared;
+            if (ordered || i == 0) {
+                queues.add(q);
+            }
+
+            CancellationSignal signal = new CancellationSignal();
+            signals.add(signal);
+
+            long lo = range[0] + i * step;
+            executor.execute(
+                new Partition(sql.toString(), lo, lo + step, conns.get(i), q, signal));
+        }
+    }
+
+    /**
+     * The names of the columns of the rows returned by the scan.
+     */
+    public List<String> columns() {
+        List<String> names = new ArrayList<String>(columns.size());
+        for (Pair<String, Class> col : columns) {
+            names.add(col.first);
+        }
+        return names;
+    }
+
+    public boolean hasNext() throws IOException {
+        while (next == null && queue < queues.size()) {
+            Object[] row;
+            try {
+                row = queues.get(queue).take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted during scan", e);
+            }
+
+            if (row == END) {
+                if (queues.size() > 1 || --remaining == 0) {
+                    queue++;
+                }
+                checkError();
+            } else {
+                next = row;
+            }
+        }
+        return next != null;
+    }
+
+    public Object[] next() throws IOException {
+        if (!hasNext()) {
+            return null;
+        }
+        Object[] row = next;
+        next = null;
+        return row;
+    }
+
+    void checkError() throws IOException {
+        Throwable t = error.get();
+        if (t != null) {
+            throw t instanceof IOException ? (IOException) t : new IOException(t);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (CancellationSignal signal : signals) {
+            signal.cancel();
+        }
+        for (Runnable r : executor.shutdownNow()) {
+            // never started, so never released its connection
+            Partition p = (Partition) r;
+            (pool != null ? pool : backend.readers).release(p.db);
+        }
+        for (BlockingQueue<Object[]> q : queues) {
+            q.clear();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    long[] range(String table) {
+        Cursor cursor = backend.db.rawQuery(
+            String.format("SELECT min(rowid), max(rowid) FROM %s", quote(table)), null);
+        try {
+            cursor.moveToFirst();
+            return cursor.isNull(0) ? new long[]{0, -1}
+                : new long[]{cursor.getLong(0), cursor.getLong(1)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    class Partition implements Runnable {
+        final String sql;
+        final long lo, hi;
+        final SQLiteDatabase db;
+        final BlockingQueue<Object[]> queue;
+        final CancellationSignal signal;
+
+        Partition(String sql, long lo, long hi, SQLiteDatabase db, BlockingQueue<Object[]> queue,
+            CancellationSignal signal) {
+            this.sql = sql;
+            this.lo = lo;
+            this.hi = hi;
+            this.db = db;
+            this.queue = queue;
+            this.signal = signal;
+        }
+
+        @Override
+        public void run() {
+            ConnectionPool readers = pool != null ? pool : backend.readers;
+            try {
+                try {
+                    Object[] args = {lo, hi};
+                    SQLiteResults rs = backend.new SQLiteResults(db, db.rawQueryWithFactory(
+                        new SQLiteBackend.BindingCursorFactory(args), sql, null, null, signal),
+                        sql, args);
+                    rs.signal = signal;
+                    try {
+                        while (rs.next()) {
+                            Object[] row = new Object[columns.size()];
+                            for (int i = 0; i < row.length; i++) {
+                                row[i] = rs.decode(i, columns.get(i).second);
+                            }
+                            queue.put(row);
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } finally {
+                    readers.release(db);
+                }
+            } catch (InterruptedException e) {
+                // scan closed
+                return;
+            } catch (Throwable t) {
+                if (!signal.isCanceled()) {
+                    error.compareAndSet(null, t);
+                }
+            }
+
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // scan closed
+            }
+        }
+    }
+}
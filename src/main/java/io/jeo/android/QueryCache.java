@@ -0,0 +1,290 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import static io.jeo.android.StatementCache.startsWithIgnoreCase;
+
+import android.util.LruCache;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Byte bounded LRU cache of decoded query results.
+ * <p>
+ * Entries are keyed by table, bounding box, filter and selected columns, and hold the rows of the
+ * query with geometries already decoded. Bounding boxes are quantized (see
+ * {@link Key#quantize(Envelope)}) so that small pans of a view map to the same entry, the query
+ * must therefore be run against the quantized bounding box of the key rather than the original.
+ * </p>
+ * <p>
+ * Sessions of the owning {@link SQLiteBackend} invalidate the entries of a table whenever they
+ * write to it, or to its rtree index. Changes made by other processes are not detected. Cached
+ * rows are shared between results and must not be modified.
+ * </p>
+ */
+public class QueryCache {
+
+    /** leading table name of a data manipulation statement */
+    static final Pattern TABLE = Pattern.compile(
+        "^\\s*(?:(?:INSERT|REPLACE)(?:\\s+OR\\s+\\w+)?\\s+INTO|UPDATE(?:\\s+OR\\s+\\w+)?"
+        + "|DELETE\\s+FROM)\\s+(?:\\w+\\.)?(\"(?:[^\"]|\"\")+\"|\\w+)",
+        Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Key of a cache entry.
+     */
+    public static class Key {
+        final String table;
+        final Envelope bbox;
+        final String filter;
+        final List<String> columns;
+
+        /**
+         * Creates the key.
+         *
+         * @param table The queried table.
+         * @param bbox The bounding box, quantized by the key. May be <code>null</code>.
+         * @param filter String form of any additional filter, may be <code>null</code>.
+         * @param columns The selected columns.
+         */
+        public Key(String table, Envelope bbox, String filter, List<String> columns) {
+            this.table = table;
+            this.bbox = bbox != null ? quantize(bbox) : null;
+            this.filter = filter;
+            this.columns = new ArrayList<String>(columns);
+        }
+
+        /**
+         * The quantized bounding box to query with.
+         */
+        public Envelope bbox() {
+            return bbox != null ? new Envelope(bbox) : null;
+        }
+
+        /**
+         * Snaps a bounding box outward to a grid whose cell size is the power of two nearest
+         * to a quarter of the larger side of the box.
+         */
+        public static Envelope quantize(Envelope e) {
+            double size = Math.max(e.getWidth(), e.getHeight()) / 4;
+            if (e.isNull() || size <= 0 || Double.isInfinite(size) || Double.isNaN(size)) {
+                return new Envelope(e);
+            }
+            double cell = Math.pow(2, Math.round(Math.log(size) / Math.log(2)));
+            return new Envelope(
+                Math.floor(e.getMinX() / cell) * cell, Math.ceil(e.getMaxX() / cell) * cell,
+                Math.floor(e.getMinY() / cell) * cell, Math.ceil(e.getMaxY() / cell) * cell);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return table.equals(other.table) && columns.equals(other.columns)
+                && (bbox == null ? other.bbox == null : bbox.equals(other.bbox))
+                && (filter == null ? other.filter == null : filter.equals(other.filter));
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{table, bbox, filter, columns});
+        }
+
+        @Override
+        public String toString() {
+            return table + columns + " " + bbox + (filter != null ? " " + filter : "");
+        }
+    }
+
+    /**
+     * Decoded rows of a query.
+     */
+    static class Rows {
+        final String[] columns;
+        final List<Object[]> rows;
+        final int bytes;
+
+        Rows(String[] columns, List<Object[]> rows) {
+            this.columns = columns;
+            this.rows = rows;
+
+            int bytes = 64;
+            for (Object[] row : rows) {
+                bytes += 16 + 4 * row.length;
+                for (Object v : row) {
+                    bytes += sizeOf(v);
+                }
+            }
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Estimates the memory held by a decoded value.
+     */
+    static int sizeOf(Object v) {
+        if (v == null) {
+            return 0;
+        }
+        if (v instanceof byte[]) {
+            return 16 + ((byte[]) v).length;
+        }
+        if (v instanceof String) {
+            return 40 + 2 * ((String) v).length();
+        }
+        if (v instanceof Geometry) {
+            // coordinate objects plus per geometry overhead
+            Geometry g = (Geometry) v;
+            return 64 * g.getNumGeometries() + 40 * g.getNumPoints();
+        }
+        if (v instanceof LazyGeometry) {
+            return 32 + ((LazyGeometry) v).blob().length;
+        }
+        return 16;
+    }
+
+    /**
+     * Parses the table written by an insert, update or delete statement.
+     *
+     * @return The unquoted table name, or <code>null</code> if the statement is not a data
+     *   manipulation statement.
+     */
+    public static String table(String sql) {
+        Matcher m = TABLE.matcher(sql);
+        if (!m.find()) {
+            return null;
+        }
+        String table = m.group(1);
+        if (table.startsWith("\"")) {
+            table = table.substring(1, table.length() - 1).replace("\"\"", "\"");
+        }
+        return table;
+    }
+
+    final LruCache<Key, Rows> cache;
+
+    /** incremented on every invalidation, results read before one are not cached */
+    long generation = 0;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxBytes The approximate maximum memory held by cached rows.
+     */
+    public QueryCache(int maxBytes) {
+        this.cache = new LruCache<Key, Rows>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Rows value) {
+                return value.bytes;
+            }
+        };
+    }
+
+    synchronized Rows get(Key key) {
+        return cache.get(key);
+    }
+
+    /**
+     * The current generation, to be obtained before running a query whose rows are to be cached.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches rows unless the cache was invalidated since the query was run, or the rows would
+     * take up more than a quarter of the cache.
+     */
+    synchronized void put(Key key, Rows rows, long generation) {
+        if (generation == this.generation && rows.bytes <= cache.maxSize() / 4) {
+            cache.put(key, rows);
+        }
+    }
+
+    /**
+     * Invalidates the entries for a table, a table named after the rtree index of another
+     * invalidates that table.
+     */
+    public synchronized void invalidate(String table) {
+        generation++;
+        for (Map.Entry<Key, Rows> e : cache.snapshot().entrySet()) {
+            String t = e.getKey().table;
+            if (t.equalsIgnoreCase(table) || table.startsWith("rtree_" + t + "_")) {
+                cache.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Invalidates the entries affected by a statement.
+     * <p>
+     * Inserts, updates and deletes invalidate the entries of the table they write to, any other
+     * statement that is not a query invalidates all entries.
+     * </p>
+     * @return The table invalidated, or <code>null</code> if the statement is not an insert,
+     *   update or delete.
+     */
+    public String invalidateFor(String sql) {
+        String table = table(sql);
+        if (table != null) {
+            invalidate(table);
+        } else {
+            String s = sql.trim();
+            if (!startsWithIgnoreCase(s, "SELECT") && !startsWithIgnoreCase(s, "PRAGMA")) {
+                clear();
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Number of lookups that found cached rows.
+     */
+    public int hits() {
+        return cache.hitCount();
+    }
+
+    /**
+     * Number of lookups that required running the query.
+     */
+    public int misses() {
+        return cache.missCount();
+    }
+
+    /**
+     * Approximate memory held by cached rows.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        generation++;
+        cache.evictAll();
+    }
+}
@@ -1,13 +1,24 @@
 package io.jeo.android;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
+import android.os.CancellationSignal;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import io.jeo.geopkg.Backend;
@@ -20,11 +31,240 @@ import io.jeo.util.Pair;
  * @author Ian Schneider <ischneider@boundlessgeo.com>
  */
 public class SQLiteBackend extends Backend {
-    
-    final SQLiteDatabase db;
+
+    /** default number of compiled statements cached per backend */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+
+    /** default number of batched statements committed per transaction */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** default number of rows fetched per page by paged queries */
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /** default number of threads running asynchronous queries */
+    public static final int DEFAULT_ASYNC_THREADS = 2;
+
+    /** milliseconds a session waits for a pooled reader before querying the writer connection */
+    public static final long READER_TIMEOUT = 1000;
+
+    final File file;
+
+    /** the writer connection */
+    protected final SQLiteDatabase db;
+
+    /** read only connections, only set when write-ahead logging is enabled */
+    ConnectionPool readers;
+
+    /** compiled write statements */
+    final StatementCache statements;
+
+    /** number of batched statements committed per transaction */
+    int batchSize = DEFAULT_BATCH_SIZE;
+
+    /** number of rows fetched per page by paged queries */
+    int pageSize = DEFAULT_PAGE_SIZE;
+
+    /** cached schema metadata */
+    final SchemaCache schema = new SchemaCache();
+
+    /** statement timing statistics */
+    final SQLiteStats stats = new SQLiteStats();
+
+    /** asynchronous query executor, created on demand */
+    AsyncQueries async;
+
+    /** decoded query results, only set when enabled */
+    QueryCache queries;
+
+    /** storage pragmas applied to connections, <code>null</code> for platform defaults */
+    final StorageProfile profile;
 
     public SQLiteBackend(File file) {
+        this(file, DEFAULT_STATEMENT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates the backend applying a storage profile to its connections.
+     */
+    public SQLiteBackend(File file, StorageProfile profile) {
+        this(file, DEFAULT_STATEMENT_CACHE_SIZE, profile);
+    }
+
+    public SQLiteBackend(File file, int statementCacheSize) {
+        this(file, statementCacheSize, null);
+    }
+
+    /**
+     * Creates the backend specifying the number of compiled statements to cache.
+     * <p>
+     * Write statements are cached in a {@link StatementCache}, queries are cached by the
+     * connection's own prepared statement cache which is sized to match (up to
+     * {@link SQLiteDatabase#MAX_SQL_CACHE_SIZE}).
+     * </p>
+     * @param profile Storage profile applied to connections as they are opened, may be
+     *   <code>null</code> to use the platform defaults.
+     */
+    public SQLiteBackend(File file, int statementCacheSize, StorageProfile profile) {
+        this.file = file;
+        this.profile = profile;
         this.db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        this.db.setMaxSqlCacheSize(Math.min(statementCacheSize, SQLiteDatabase.MAX_SQL_CACHE_SIZE));
+        if (profile != null) {
+            profile.apply(db, false);
+        }
+        this.statements = new StatementCache(db, statementCacheSize);
+    }
+
+    /**
+     * The database file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The storage profile applied to connections, <code>null</code> if none.
+     */
+    public StorageProfile getStorageProfile() {
+        return profile;
+    }
+
+    /**
+     * The storage settings in effect on the writer connection, by pragma name.
+     * <p>
+     * All pragmas set by any of the {@link StorageProfile}s are reported, a pragma the SQLite
+     * version of the device does not support maps to <code>null</code>.
+     * </p>
+     */
+    public Map<String, String> getStorageSettings() {
+        return StorageProfile.settings(db);
+    }
+
+    /**
+     * The cache of compiled write statements.
+     */
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
+    /**
+     * The cache of schema metadata.
+     */
+    public SchemaCache getSchemaCache() {
+        return schema;
+    }
+
+    /**
+     * The executor for asynchronous queries, created on first use with
+     * {@link #DEFAULT_ASYNC_THREADS} threads.
+     */
+    public synchronized AsyncQueries async() {
+        if (async == null) {
+            async = new AsyncQueries(this, DEFAULT_ASYNC_THREADS);
+        }
+        return async;
+    }
+
+    /**
+     * Enables caching of decoded results for queries run through
+     * {@link SQLiteSession#queryCached(QueryCache.Key, String, Object...)}.
+     *
+     * @param maxBytes The approximate maximum memory held by cached results.
+     */
+    public synchronized QueryCache enableQueryCache(int maxBytes) {
+        if (queries == null) {
+            queries = new QueryCache(maxBytes);
+        }
+        return queries;
+    }
+
+    /**
+     * The cache of decoded query results, <code>null</code> unless enabled with
+     * {@link #enableQueryCache(int)}.
+     */
+    public QueryCache getQueryCache() {
+        return queries;
+    }
+
+    /**
+     * The statement timing statistics.
+     */
+    public SQLiteStats getStats() {
+        return stats;
+    }
+
+    /**
+     * The number of batched statements committed per transaction.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the number of batched statements committed per transaction when a session's batch is
+     * executed.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be positive: " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Switches the database to write-ahead logging mode and sets up a pool of read only
+     * connections.
+     * <p>
+     * Once enabled sessions run queries on a connection from the reader pool until they begin a
+     * transaction or write, from which point they use the single writer connection. Readers then
+     * no longer block on a background writer, nor the writer on readers.
+     * </p>
+     * @param maxReaders The maximum number of read only connections.
+     *
+     * @return True if write-ahead logging is in effect, false if the database could not be
+     *   switched (for instance because it is in memory) in which case no reader pool is created.
+     */
+    public synchronized boolean enableWriteAheadLogging(int maxReaders) throws IOException {
+        if (readers != null) {
+            return true;
+        }
+
+        Cursor cursor = db.rawQuery("PRAGMA journal_mode=WAL", null);
+        try {
+            if (!cursor.moveToFirst() || !"wal".equalsIgnoreCase(cursor.getString(0))) {
+                return false;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        readers = new ConnectionPool(file, maxReaders, profile);
+        return true;
+    }
+
+    /**
+     * Determines if write-ahead logging and the reader pool are enabled.
+     */
+    public boolean isWriteAheadLoggingEnabled() {
+        return readers != null;
+    }
+
+    /**
+     * The number of rows fetched per page by paged queries.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Sets the number of rows fetched per page by
+     * {@link SQLiteSession#queryPaged(String, List, String, Object...)}.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("page size must be positive: " + pageSize);
+        }
+        this.pageSize = pageSize;
     }
 
     @Override
@@ -33,32 +273,212 @@ public class SQLiteBackend extends Backend {
     }
     
     @Override
-    public Session session() throws IOException {
-        return new SQLiteSession();
+    public SQLiteSession session() throws IOException {
+        return new SQLiteSession(false);
     }
 
+    /**
+     * Creates a session that only runs queries.
+     * <p>
+     * When write-ahead logging is enabled a read only session uses a connection from the reader
+     * pool even within a transaction, unless the pool stays exhausted for longer than
+     * {@link #READER_TIMEOUT}. Attempting to write through the session fails.
+     * </p>
+     */
+    public SQLiteSession readSession() throws IOException {
+        return new SQLiteSession(true);
+    }
+
+    /**
+     * Binds arguments to a compiled statement or query using their native SQLite types.
+     * <p>
+     * Arguments are bound to parameters starting at index 1. Geometry arguments must already
+     * be encoded.
+     * </p>
+     */
+    static void bind(SQLiteProgram program, Object... args) {
+        for (int i = 0; i < args.length; i++) {
+            Object arg = args[i];
+            int idx = i + 1;
+            if (arg == null) {
+                program.bindNull(idx);
+            } else if (arg instanceof byte[]) {
+                program.bindBlob(idx, (byte[]) arg);
+            } else if (arg instanceof Double || arg instanceof Float) {
+                program.bindDouble(idx, ((Number) arg).doubleValue());
+            } else if (arg instanceof Long || arg instanceof Integer
+                    || arg instanceof Short || arg instanceof Byte) {
+                program.bindLong(idx, ((Number) arg).longValue());
+            } else if (arg instanceof Number) {
+                program.bindDouble(idx, ((Number) arg).doubleValue());
+            } else if (arg instanceof Boolean) {
+                program.bindLong(idx, ((Boolean) arg) ? 1 : 0);
+            } else {
+                program.bindString(idx, arg.toString());
+            }
+        }
+    }
+
+    /** geometry writers, one per thread */
+    static final ThreadLocal<GeoPkgGeomWriter> WRITERS = new ThreadLocal<GeoPkgGeomWriter>() {
+        @Override
+        protected GeoPkgGeomWriter initialValue() {
+            return new GeoPkgGeomWriter();
+        }
+    };
+
+    /**
+     * Encodes any geometry arguments, in place, as GeoPackage geometry blobs.
+     */
+    static void encode(Object... args) throws IOException {
+        GeoPkgGeomWriter writer = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof Geometry) {
+                if (writer == null) {
+                    writer = WRITERS.get();
+                }
+                args[i] = writer.write((Geometry) args[i]);
+            }
+        }
+    }
+
+    /**
+     * Cursor factory that binds query arguments with their native types, rather than as the
+     * strings {@link SQLiteDatabase#rawQuery(String, String[])} is limited to.
+     */
+    static class BindingCursorFactory implements SQLiteDatabase.CursorFactory {
+
+        final Object[] args;
+
+        BindingCursorFactory(Object... args) {
+            this.args = args;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+            SQLiteQuery query) {
+            bind(query, args);
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    }
+
+    /**
+     * Quotes a table or column name.
+     */
+    public static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Records statement timing, capturing the query plan if the statement was slow.
+     *
+     * @param conn The connection that ran the statement, the plan is captured on it so that a
+     *   query run on a pooled reader does not wait on the writer connection.
+     */
+    void record(SQLiteDatabase conn, String sql, Object[] args, long nanos, long rows) {
+        if (stats.record(sql, nanos, rows)) {
+            stats.slow(sql, nanos, rows, explain(conn, sql, args));
+        }
+    }
+
+    /**
+     * Runs a query on a connection opened by a subclass in addition to the backend's own, timing
+     * it against that connection.
+     */
+    protected SQLiteResults query(SQLiteDatabase conn, String sql, Object... args) {
+        return new SQLiteResults(conn, conn.rawQueryWithFactory(
+            new BindingCursorFactory(args), sql, null, null), sql, args);
+    }
+
+    /**
+     * Returns the <tt>EXPLAIN QUERY PLAN</tt> output for a statement, one entry per row.
+     */
+    public List<String> explain(String sql, Object... args) {
+        return explain(db, sql, args);
+    }
+
+    List<String> explain(SQLiteDatabase conn, String sql, Object... args) {
+        List<String> plan = new ArrayList<String>();
+        try {
+            Cursor cursor = conn.rawQueryWithFactory(
+                new BindingCursorFactory(args), "EXPLAIN QUERY PLAN " + sql, null, null);
+            try {
+                int detail = cursor.getColumnCount() - 1;
+                while (cursor.moveToNext()) {
+                    plan.add(cursor.getString(detail));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RuntimeException e) {
+            plan.add("Unable to explain statement: " + e.getMessage());
+        }
+        return plan;
+    }
+
+    static final Pattern PRIMARY_KEY = Pattern.compile("\"([^\"]+)\" INTEGER.*PRIMARY KEY");
+
     public static String parsePrimaryKeyColumn(String tableDef) {
-        Matcher matcher = Pattern.compile("\"([^\"]+)\" INTEGER.*PRIMARY KEY").matcher(tableDef);
+        Matcher matcher = PRIMARY_KEY.matcher(tableDef);
         return matcher.find() ? matcher.group(1) : null;
     }
 
     @Override
     public List<Pair<String, Class>> getColumnInfo(String table) throws IOException {
-        List<Pair<String, Class>> info = new ArrayList<Pair<String,Class>>();
+        List<Pair<String, Class>> info = schema.columns(table);
+        if (info != null) {
+            return new ArrayList<Pair<String,Class>>(info);
+        }
+
+        info = new ArrayList<Pair<String,Class>>();
         String sql = String.format("PRAGMA table_info(%s)", table);
         Cursor cursor = db.rawQuery(sql, null);
         try {
+            int nameIdx = cursor.getColumnIndex("name");
+            int typeIdx = cursor.getColumnIndex("type");
             while (cursor.moveToNext()) {
-                String name = cursor.getString(cursor.getColumnIndex("name"));
-                String type = cursor.getString(cursor.getColumnIndex("type"));
-                info.add(Pair.of(name, (Class) dbTypes.fromName(type)));
+                info.add(Pair.of(cursor.getString(nameIdx), type(cursor.getString(typeIdx))));
             }
         } finally {
             cursor.close();
         }
+
+        schema.columns(table, new ArrayList<Pair<String,Class>>(info));
         return info;
     }
 
+    Class type(String name) {
+        Class type = schema.type(name);
+        if (type == null) {
+            type = dbTypes.fromName(name);
+            if (type != null) {
+                schema.type(name, type);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Determines if a table or view exists in the database.
+     */
+    public boolean hasTable(String name) throws IOException {
+        Set<String> tables = schema.tables();
+        if (tables == null) {
+            tables = new HashSet<String>();
+            Cursor cursor = db.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type IN ('table', 'view')", null);
+            try {
+                while (cursor.moveToNext()) {
+                    tables.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            schema.tables(tables);
+        }
+        return tables.contains(name);
+    }
+
     @Override
     protected void closeInternal(Object object) throws Exception {
         if (object instanceof Cursor) {
@@ -70,33 +490,161 @@ public class SQLiteBackend extends Backend {
 
     @Override
     public void close() throws IOException {
+        if (async != null) {
+            async.shutdown();
+        }
+        if (readers != null) {
+            readers.close();
+        }
+        statements.clear();
         db.close();
     }
 
-    class SQLiteSession extends Backend.Session {
+    public class SQLiteSession extends Backend.Session {
         GeoPkgGeomReader geomReader;
         Cursor cursor;
 
+        /** statements queued by addBatch */
+        List<String> batch = new ArrayList<String>();
+
+        /** whether the session only reads */
+        final boolean readOnly;
+
+        /** connection borrowed from the reader pool */
+        SQLiteDatabase reader;
+
+        /** whether the reader pool was exhausted and queries fell back to the writer connection */
+        boolean fallback = false;
+
+        /** whether the session has written or started a transaction */
+        boolean writing = false;
+
+        /** tables written in the current transaction */
+        Set<String> written = new HashSet<String>();
+
+        SQLiteSession(boolean readOnly) {
+            this.readOnly = readOnly;
+        }
+
+        /**
+         * The connection used for writes, once used all further queries also go through it so they
+         * see the session's own changes.
+         */
+        SQLiteDatabase writer() throws IOException {
+            if (readOnly) {
+                throw new IOException("session is read only");
+            }
+            writing = true;
+            // no longer used for queries, cursors still open on it remain valid
+            release();
+            return db;
+        }
+
+        /**
+         * The connection used for queries.
+         * <p>
+         * If no pooled reader is released within {@link #READER_TIMEOUT}, for instance because
+         * the calling thread itself holds all of them through open sessions, the session queries
+         * the writer connection instead.
+         * </p>
+         */
+        SQLiteDatabase reader() throws IOException {
+            if (readers == null || writing || fallback) {
+                return db;
+            }
+            if (reader == null) {
+                reader = readers.acquire(READER_TIMEOUT);
+                if (reader == null) {
+                    fallback = true;
+                    return db;
+                }
+            }
+            return reader;
+        }
+
+        void release() {
+            if (reader != null) {
+                readers.release(reader);
+                reader = null;
+            }
+        }
+
         @Override
         public void addBatch(String sql) throws IOException {
-            db.execSQL(sql);
+            batch.add(sql);
         }
 
         @Override
         public void executeBatch() throws IOException {
-            // do nothing
+            try {
+                for (int i = 0; i < batch.size(); i += batchSize) {
+                    List<String> chunk = batch.subList(i, Math.min(i + batchSize, batch.size()));
+                    SQLiteDatabase db = writer();
+                    db.beginTransaction();
+                    try {
+                        for (String sql : chunk) {
+                            log(sql);
+                            long start = System.nanoTime();
+                            db.execSQL(sql);
+                            record(db, sql, new Object[0], System.nanoTime() - start, 0);
+                            if (SchemaCache.isSchemaChange(sql)) {
+                                schema.clear();
+                            }
+                            invalidate(sql);
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
         }
 
         @Override
         public void executePrepared(String sql, Object... args) throws IOException {
-            GeoPkgGeomWriter writer = new GeoPkgGeomWriter();
-            for (int i = 0; i < args.length; i++) {
-                if (args[i] instanceof Geometry) {
-                    args[i] = writer.write((Geometry) args[i]);
+            executeUpdate(sql, args);
+        }
+
+        /**
+         * Executes a prepared statement, returning the number of rows it changed.
+         * <p>
+         * The count is only reported for data manipulation statements, <tt>0</tt> is returned for
+         * any other statement.
+         * </p>
+         */
+        public long executeUpdate(String sql, Object... args) throws IOException {
+            SQLiteDatabase db = writer();
+            encode(args);
+            log(sql, args);
+            long start = System.nanoTime();
+            long rows = 0;
+            if (StatementCache.isCacheable(sql)) {
+                rows = statements.execute(sql, args);
+            } else {
+                db.execSQL(sql, args);
+                if (SchemaCache.isSchemaChange(sql)) {
+                    schema.clear();
                 }
             }
-            log(sql, args);
-            db.execSQL(sql, args);
+            record(db, sql, args, System.nanoTime() - start, rows);
+            invalidate(sql);
+            return rows;
+        }
+
+        /**
+         * Invalidates cached query results affected by a statement, remembering the table written
+         * so that it is invalidated again once the transaction ends.
+         */
+        void invalidate(String sql) {
+            if (queries == null) {
+                return;
+            }
+            String table = queries.invalidateFor(sql);
+            if (table != null && db.inTransaction()) {
+                written.add(table);
+            }
         }
 
         @Override
@@ -106,12 +654,26 @@ public class SQLiteBackend extends Backend {
 
         @Override
         public SQLiteResults queryPrepared(String sql, Object... args) throws IOException {
-            String[] selectionArgs = new String[args.length];
-            for (int i = 0; i < args.length; i++) {
-                selectionArgs[i] = String.valueOf(args[i]);
-            }
+            return queryPrepared(null, sql, args);
+        }
+
+        /**
+         * Runs a query that may be aborted with a cancellation signal.
+         * <p>
+         * Cancelling the signal aborts the query while it is being stepped, reading further rows
+         * from the results then throws {@link android.os.OperationCanceledException}.
+         * </p>
+         * @param signal The cancellation signal, may be <code>null</code>.
+         */
+        public SQLiteResults queryPrepared(CancellationSignal signal, String sql, Object... args)
+            throws IOException {
+            encode(args);
             log(sql, args);
-            return new SQLiteResults(db.rawQuery(sql, selectionArgs));
+            SQLiteDatabase conn = reader();
+            SQLiteResults rs = new SQLiteResults(conn, conn.rawQueryWithFactory(
+                new BindingCursorFactory(args), sql, null, null, signal), sql, args);
+            rs.signal = signal;
+            return rs;
         }
 
         @Override
@@ -119,22 +681,117 @@ public class SQLiteBackend extends Backend {
             return queryPrepared(sql);
         }
 
+        /**
+         * Runs a query whose decoded results are cached under the specified key.
+         * <p>
+         * When the query cache is enabled (see {@link SQLiteBackend#enableQueryCache(int)}) and
+         * holds results for the key they are returned without touching the database, otherwise
+         * the query is run and its rows read and decoded in full before being returned. Columns of
+         * the key table are decoded to the class of the column, geometries included. Results read
+         * within a transaction that has written are not cached.
+         * </p>
+         */
+        public Results queryCached(QueryCache.Key key, String sql, Object... args)
+            throws IOException {
+            if (queries == null) {
+                return queryPrepared(sql, args);
+            }
+
+            QueryCache.Rows rows = queries.get(key);
+            if (rows == null) {
+                long generation = queries.generation();
+                SQLiteResults rs = queryPrepared(sql, args);
+                try {
+                    rows = rs.decode(key.table);
+                } finally {
+                    rs.close();
+                }
+                if (!(writing && db.inTransaction())) {
+                    queries.put(key, rows, generation);
+                }
+            }
+            return new CachedResults(rows);
+        }
+
+        /**
+         * Queries a table streaming the rows in pages ordered by primary key.
+         * <p>
+         * Each page is fetched with a separate query that seeks past the last key of the previous
+         * page, so only a page worth of rows (see {@link SQLiteBackend#getPageSize()}) is ever held
+         * by the underlying cursor regardless of the size of the table. Rows are ordered by the integer
+         * primary key of the table, or rowid if it has none.
+         * </p>
+         * @param table The table to query.
+         * @param columns The columns to select, all columns if empty.
+         * @param where Optional predicate, may be <code>null</code>.
+         * @param args Arguments for the predicate.
+         */
+        public SQLiteResults queryPaged(String table, List<String> columns, String where,
+            Object... args) throws IOException {
+            List<String> keys = getPrimaryKeys(table);
+            String key = keys.isEmpty() ? "rowid" : quote(keys.get(0));
+
+            StringBuilder sql = new StringBuilder("SELECT ");
+            if (columns.isEmpty()) {
+                sql.append("*");
+            } else {
+                for (int i = 0; i < columns.size(); i++) {
+                    sql.append(i > 0 ? ", " : "").append(quote(columns.get(i)));
+                }
+            }
+            // key selected last so column indexes match the requested columns
+            sql.append(", ").append(key).append(" FROM ").append(quote(table)).append(" WHERE ");
+            if (where != null) {
+                sql.append("(").append(where).append(") AND ");
+            }
+            sql.append(key).append(" > ? ORDER BY ").append(key).append(" LIMIT ").append(pageSize);
+
+            encode(args);
+            return new PagedResults(reader(), sql.toString(), args, pageSize);
+        }
+
         @Override
         public void endTransaction(boolean complete) throws IOException {
+            if (readOnly) {
+                return;
+            }
             if (complete) {
                 db.setTransactionSuccessful();
+            } else {
+                // any schema change made in the transaction is being rolled back
+                schema.clear();
             }
             db.endTransaction();
+
+            if (queries != null && !db.inTransaction()) {
+                // results read by other sessions while the transaction was open are stale
+                if (complete) {
+                    for (String table : written) {
+                        queries.invalidate(table);
+                    }
+                } else {
+                    queries.clear();
+                }
+                written.clear();
+            }
         }
 
         @Override
         public void beginTransaction() throws IOException {
-            db.beginTransaction();
+            if (readOnly) {
+                return;
+            }
+            writer().beginTransaction();
         }
 
         @Override
         public List<String> getPrimaryKeys(String tableName) throws IOException {
-            List<String> keys = new ArrayList<String>(3);
+            List<String> keys = schema.primaryKeys(tableName);
+            if (keys != null) {
+                return new ArrayList<String>(keys);
+            }
+
+            keys = new ArrayList<String>(3);
             String sql = "SELECT sql from sqlite_master where type=? and name=?";
             SQLiteResults rs = queryPrepared(sql, "table", tableName);
             try {
@@ -148,28 +805,70 @@ public class SQLiteBackend extends Backend {
             } finally {
                 rs.close();
             }
+            schema.primaryKeys(tableName, new ArrayList<String>(keys));
             return keys;
         }
 
+        @Override
+        public void closeInternal() throws Exception {
+            release();
+        }
     }
 
-    class SQLiteResults extends Backend.Results {
-        final Cursor cursor;
+    public class SQLiteResults extends Backend.Results {
+        Cursor cursor;
         final GeoPkgGeomReader geomReader = new GeoPkgGeomReader();
 
-        SQLiteResults(Cursor cursor) {
+        /** column indexes by name, resolved on first access by name */
+        Map<String, Integer> columns;
+
+        /** the connection the query runs on */
+        final SQLiteDatabase conn;
+
+        /** the query and its arguments */
+        final String sql;
+        final Object[] args;
+
+        /** time spent stepping the cursor */
+        long nanos;
+
+        /** number of rows read */
+        long rows;
+
+        /** signal for aborting the query, may be <code>null</code> */
+        CancellationSignal signal;
+
+        /** session closed along with the results, may be <code>null</code> */
+        SQLiteSession session;
+
+        SQLiteResults(SQLiteDatabase conn, Cursor cursor, String sql, Object[] args) {
+            this.conn = conn;
             this.cursor = cursor;
+            this.sql = sql;
+            this.args = args;
         }
 
         @Override
         public boolean next() throws IOException {
-            return cursor.moveToNext();
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            long start = System.nanoTime();
+            boolean next = cursor.moveToNext();
+            nanos += System.nanoTime() - start;
+            if (next) {
+                rows++;
+            }
+            return next;
         }
 
         @Override
         public Object getObject(int idx, Class t) throws IOException {
             Object obj;
-            if (Geometry.class.isAssignableFrom(t)) {
+            if (LazyGeometry.class.equals(t)) {
+                byte[] blob = cursor.getBlob(idx);
+                obj = blob != null ? new LazyGeometry(blob) : null;
+            } else if (Geometry.class.isAssignableFrom(t)) {
                 obj = geomReader.read(cursor.getBlob(idx));
             } else if (Long.class.equals(t)) {
                 obj = cursor.getLong(idx);
@@ -184,6 +883,62 @@ public class SQLiteBackend extends Backend {
             return obj;
         }
 
+        /**
+         * Reads the envelope of a geometry column from the GeoPackage header of the blob, only
+         * decoding the geometry when the header contains no envelope.
+         */
+        public Envelope getEnvelope(int idx) throws IOException {
+            byte[] blob = cursor.getBlob(idx);
+            return blob != null ? new LazyGeometry(blob).envelope() : null;
+        }
+
+        /**
+         * Reads and decodes all remaining rows.
+         *
+         * @param table The table whose column types are used to decode values of the same name.
+         */
+        QueryCache.Rows decode(String table) throws IOException {
+            Map<String, Class> types = new HashMap<String, Class>();
+            for (Pair<String, Class> col : getColumnInfo(table)) {
+                types.put(col.first, col.second);
+            }
+
+            String[] names = cursor.getColumnNames();
+            Class[] classes = new Class[names.length];
+            for (int i = 0; i < names.length; i++) {
+                classes[i] = types.get(names[i]);
+            }
+
+            List<Object[]> rows = new ArrayList<Object[]>();
+            while (next()) {
+                Object[] row = new Object[names.length];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = decode(i, classes[i]);
+                }
+                rows.add(row);
+            }
+            return new QueryCache.Rows(names, rows);
+        }
+
+        Object decode(int idx, Class t) throws IOException {
+            if (cursor.isNull(idx)) {
+                return null;
+            }
+            if (t != null) {
+                return getObject(idx, t);
+            }
+            switch (cursor.getType(idx)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(idx);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(idx);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(idx);
+                default:
+                    return cursor.getString(idx);
+            }
+        }
+
         @Override
         public long getLong(int idx) throws IOException {
             return cursor.getLong(idx);
@@ -191,7 +946,22 @@ public class SQLiteBackend extends Backend {
 
         @Override
         public String getString(String col) throws IOException {
-            return cursor.getString(cursor.getColumnIndex(col));
+            return cursor.getString(columnIndex(col));
+        }
+
+        /**
+         * Returns the index of a column, or -1 if the results contain no such column.
+         */
+        public int columnIndex(String col) {
+            if (columns == null) {
+                String[] names = cursor.getColumnNames();
+                columns = new HashMap<String, Integer>(names.length * 2);
+                for (int i = 0; i < names.length; i++) {
+                    columns.put(names[i], i);
+                }
+            }
+            Integer idx = columns.get(col);
+            return idx != null ? idx : cursor.getColumnIndex(col);
         }
 
         @Override
@@ -223,6 +993,134 @@ public class SQLiteBackend extends Backend {
         @Override
         public void closeInternal() throws Exception {
             cursor.close();
+            record(conn, sql, args, nanos, rows);
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * Results over rows held by the query cache.
+     */
+    class CachedResults extends Backend.Results {
+        final QueryCache.Rows rows;
+
+        /** index of the current row */
+        int row = -1;
+
+        CachedResults(QueryCache.Rows rows) {
+            this.rows = rows;
+        }
+
+        Object value(int idx) {
+            return rows.rows.get(row)[idx];
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            return ++row < rows.rows.size();
+        }
+
+        @Override
+        public Object getObject(int idx, Class t) throws IOException {
+            Object obj = value(idx);
+            if (obj instanceof Number) {
+                Number n = (Number) obj;
+                if (Long.class.equals(t)) {
+                    obj = n.longValue();
+                } else if (Integer.class.equals(t)
+                        || Short.class.equals(t) || Byte.class.equals(t)) {
+                    obj = n.intValue();
+                } else if (Double.class.equals(t) || Float.class.equals(t)) {
+                    obj = n.doubleValue();
+                }
+            }
+            return obj;
+        }
+
+        @Override
+        public long getLong(int idx) throws IOException {
+            Object obj = value(idx);
+            return obj != null ? ((Number) obj).longValue() : 0;
+        }
+
+        @Override
+        public String getString(String col) throws IOException {
+            return getString(Arrays.asList(rows.columns).indexOf(col));
+        }
+
+        @Override
+        public byte[] getBytes(int i) throws IOException {
+            return (byte[]) value(i);
+        }
+
+        @Override
+        public String getString(int idx) throws IOException {
+            Object obj = value(idx);
+            return obj != null ? obj.toString() : null;
+        }
+
+        @Override
+        public int getInt(int idx) throws IOException {
+            Object obj = value(idx);
+            return obj != null ? ((Number) obj).intValue() : 0;
+        }
+
+        @Override
+        public double getDouble(int idx) throws IOException {
+            Object obj = value(idx);
+            return obj != null ? ((Number) obj).doubleValue() : 0;
+        }
+
+        @Override
+        public boolean getBoolean(int idx) throws IOException {
+            return getInt(idx) != 0;
+        }
+    }
+
+    /**
+     * Results that fetch rows in pages of a fixed size using keyset pagination.
+     */
+    class PagedResults extends SQLiteResults {
+        final SQLiteDatabase db;
+        final int pageSize;
+
+        /** number of rows read from the current page */
+        int count;
+
+        /**
+         * Creates the results, the last of the query arguments is the key to seek past and is
+         * appended to the specified arguments.
+         */
+        PagedResults(SQLiteDatabase db, String sql, Object[] args, int pageSize) {
+            super(db, null, sql, Arrays.copyOf(args, args.length + 1));
+            this.db = db;
+            this.args[args.length] = Long.MIN_VALUE;
+            this.pageSize = pageSize;
+            this.cursor = page();
+        }
+
+        Cursor page() {
+            count = 0;
+            return db.rawQueryWithFactory(new BindingCursorFactory(args), sql, null, null);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (super.next()) {
+                count++;
+                args[args.length - 1] = cursor.getLong(cursor.getColumnCount() - 1);
+                return true;
+            }
+            if (count < pageSize) {
+                // last page was partial, no more rows
+                return false;
+            }
+
+            cursor.close();
+            cursor = page();
+            return next();
         }
     }
 }
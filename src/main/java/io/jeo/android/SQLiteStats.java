@@ -0,0 +1,233 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statement timing statistics for a {@link SQLiteBackend}.
+ * <p>
+ * Latency is recorded per statement in a {@link Histogram}, along with the number of rows read or
+ * written. For queries latency is the time spent stepping the cursor, not including the time the
+ * caller spends processing rows. Statements that take longer than the slow query threshold are
+ * recorded along with the output of <tt>EXPLAIN QUERY PLAN</tt>.
+ * </p>
+ */
+public class SQLiteStats {
+
+    /** upper bounds in milliseconds of the histogram buckets, the last bucket is unbounded */
+    public static final long[] BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000};
+
+    /** default slow query threshold in milliseconds */
+    public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 100;
+
+    /** maximum number of distinct statements tracked */
+    static final int MAX_STATEMENTS = 100;
+
+    /** maximum number of slow queries retained */
+    static final int MAX_SLOW_QUERIES = 20;
+
+    /**
+     * Latency histogram and row count for a statement.
+     */
+    public static class Histogram {
+        final long[] counts = new long[BUCKETS.length + 1];
+        long count;
+        long rows;
+        long totalNanos;
+        long maxNanos;
+
+        void record(long nanos, long rows) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while (i < BUCKETS.length && millis >= BUCKETS[i]) {
+                i++;
+            }
+            counts[i]++;
+            count++;
+            this.rows += rows;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        Histogram copy() {
+            Histogram h = new Histogram();
+            System.arraycopy(counts, 0, h.counts, 0, counts.length);
+            h.count = count;
+            h.rows = rows;
+            h.totalNanos = totalNanos;
+            h.maxNanos = maxNanos;
+            return h;
+        }
+
+        /**
+         * Number of executions falling in each bucket of {@link SQLiteStats#BUCKETS}, plus a final
+         * entry for executions longer than the last bucket.
+         */
+        public long[] counts() {
+            return counts.clone();
+        }
+
+        /**
+         * Number of executions.
+         */
+        public long count() {
+            return count;
+        }
+
+        /**
+         * Total number of rows read or written.
+         */
+        public long rows() {
+            return rows;
+        }
+
+        /**
+         * Mean execution time in milliseconds.
+         */
+        public double meanMillis() {
+            return count > 0 ? totalNanos / (double) count / 1e6 : 0;
+        }
+
+        /**
+         * Longest execution time in milliseconds.
+         */
+        public double maxMillis() {
+            return maxNanos / 1e6;
+        }
+    }
+
+    /**
+     * A statement that exceeded the slow query threshold.
+     */
+    public static class SlowQuery {
+        /** the statement */
+        public final String sql;
+
+        /** execution time in milliseconds */
+        public final long millis;
+
+        /** number of rows read or written */
+        public final long rows;
+
+        /** the query plan, one entry per row of <tt>EXPLAIN QUERY PLAN</tt> output */
+        public final List<String> plan;
+
+        SlowQuery(String sql, long millis, long rows, List<String> plan) {
+            this.sql = sql;
+            this.millis = millis;
+            this.rows = rows;
+            this.plan = plan;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d ms, %d rows) %s", sql, millis, rows, plan);
+        }
+    }
+
+    Histogram total = new Histogram();
+
+    final Map<String, Histogram> statements = new LinkedHashMap<String, Histogram>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Histogram> eldest) {
+            return size() > MAX_STATEMENTS;
+        }
+    };
+
+    final LinkedList<SlowQuery> slow = new LinkedList<SlowQuery>();
+
+    long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+
+    /**
+     * The slow query threshold in milliseconds, a value &lt;= 0 means slow queries are not
+     * recorded.
+     */
+    public synchronized long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    public synchronized void setSlowQueryThreshold(long millis) {
+        this.slowQueryThreshold = millis;
+    }
+
+    /**
+     * Records an execution of a statement.
+     *
+     * @return True if the execution exceeded the slow query threshold.
+     */
+    public synchronized boolean record(String sql, long nanos, long rows) {
+        total.record(nanos, rows);
+
+        Histogram h = statements.get(sql);
+        if (h == null) {
+            h = new Histogram();
+            statements.put(sql, h);
+        }
+        h.record(nanos, rows);
+
+        return slowQueryThreshold > 0 && TimeUnit.NANOSECONDS.toMillis(nanos) >= slowQueryThreshold;
+    }
+
+    /**
+     * Records a slow execution of a statement along with its query plan.
+     */
+    public synchronized void slow(String sql, long nanos, long rows, List<String> plan) {
+        slow.addLast(new SlowQuery(sql, TimeUnit.NANOSECONDS.toMillis(nanos), rows, plan));
+        if (slow.size() > MAX_SLOW_QUERIES) {
+            slow.removeFirst();
+        }
+    }
+
+    /**
+     * Histogram over all statements.
+     */
+    public synchronized Histogram total() {
+        return total.copy();
+    }
+
+    /**
+     * Histograms by statement for the most recently executed statements.
+     */
+    public synchronized Map<String, Histogram> statements() {
+        Map<String, Histogram> copy = new LinkedHashMap<String, Histogram>();
+        for (Map.Entry<String, Histogram> e : statements.entrySet()) {
+            copy.put(e.getKey(), e.getValue().copy());
+        }
+        return copy;
+    }
+
+    /**
+     * The most recent slow queries, oldest first.
+     */
+    public synchronized List<SlowQuery> slowQueries() {
+        return Collections.unmodifiableList(new ArrayList<SlowQuery>(slow));
+    }
+
+    /**
+     * Clears all recorded statistics.
+     */
+    public synchronized void reset() {
+        total = new Histogram();
+        statements.clear();
+        slow.clear();
+    }
+}
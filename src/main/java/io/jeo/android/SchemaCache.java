@@ -0,0 +1,98 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import static io.jeo.android.StatementCache.startsWithIgnoreCase;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.jeo.util.Pair;
+
+/**
+ * Cache of schema metadata for a {@link SQLiteBackend}.
+ * <p>
+ * Holds table names, column info, primary keys and the mapping of declared column types to
+ * classes. The cache is cleared whenever a schema statement runs through one of the backend's
+ * sessions, schema changes made by other processes are not detected.
+ * </p>
+ */
+public class SchemaCache {
+
+    /** names of tables and views, <code>null</code> until loaded */
+    Set<String> tables;
+
+    /** column info by table */
+    final Map<String, List<Pair<String, Class>>> columns =
+        new HashMap<String, List<Pair<String, Class>>>();
+
+    /** primary key columns by table */
+    final Map<String, List<String>> primaryKeys = new HashMap<String, List<String>>();
+
+    /** column classes by declared type name */
+    final Map<String, Class> types = new HashMap<String, Class>();
+
+    /**
+     * Determines if a statement changes the schema.
+     */
+    public static boolean isSchemaChange(String sql) {
+        String s = sql.trim();
+        return startsWithIgnoreCase(s, "CREATE") || startsWithIgnoreCase(s, "ALTER")
+            || startsWithIgnoreCase(s, "DROP");
+    }
+
+    synchronized Set<String> tables() {
+        return tables;
+    }
+
+    synchronized void tables(Set<String> tables) {
+        this.tables = tables;
+    }
+
+    synchronized List<Pair<String, Class>> columns(String table) {
+        return columns.get(table);
+    }
+
+    synchronized void columns(String table, List<Pair<String, Class>> info) {
+        columns.put(table, info);
+    }
+
+    synchronized List<String> primaryKeys(String table) {
+        return primaryKeys.get(table);
+    }
+
+    synchronized void primaryKeys(String table, List<String> keys) {
+        primaryKeys.put(table, keys);
+    }
+
+    synchronized Class type(String name) {
+        return types.get(name);
+    }
+
+    synchronized void type(String name, Class clazz) {
+        types.put(name, clazz);
+    }
+
+    /**
+     * Clears all cached metadata.
+     */
+    public synchronized void clear() {
+        tables = null;
+        columns.clear();
+        primaryKeys.clear();
+    }
+}
@@ -0,0 +1,155 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of compiled {@link SQLiteStatement} objects keyed by SQL text.
+ * <p>
+ * Statements are compiled against a single database handle and are closed when evicted from the
+ * cache. A statement is checked out of the cache while it is being bound and stepped and checked
+ * back in afterwards, so that no lock is held while SQLite waits for the connection and a
+ * statement in use is never evicted. A statement executed concurrently by several threads is
+ * compiled once per thread, the extra copies are closed as they are checked in.
+ * </p>
+ */
+public class StatementCache {
+
+    /** the database statements are compiled against */
+    final SQLiteDatabase db;
+
+    /** maximum number of idle statements */
+    final int size;
+
+    /** idle compiled statements, least recently used first */
+    final LinkedHashMap<String, SQLiteStatement> statements;
+
+    /** number of lookups that found and did not find a compiled statement */
+    int hits, misses;
+
+    /** incremented on clear, statements checked out before are closed on check in */
+    int generation;
+
+    public StatementCache(SQLiteDatabase db, int size) {
+        this.db = db;
+        this.size = size;
+        this.statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > StatementCache.this.size) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Determines if the statement is worth caching.
+     * <p>
+     * Only data manipulation statements are cached, schema and pragma statements are executed
+     * rarely enough that they would only push useful statements out of the cache.
+     * </p>
+     */
+    public static boolean isCacheable(String sql) {
+        String s = sql.trim();
+        return startsWithIgnoreCase(s, "INSERT") || startsWithIgnoreCase(s, "UPDATE")
+            || startsWithIgnoreCase(s, "DELETE") || startsWithIgnoreCase(s, "REPLACE");
+    }
+
+    static boolean startsWithIgnoreCase(String s, String prefix) {
+        return s.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    /**
+     * Executes a statement, compiling it if not already cached.
+     *
+     * @param sql The statement to execute.
+     * @param args The statement arguments, bound with their native types.
+     *
+     * @return The number of rows changed by the statement.
+     */
+    public int execute(String sql, Object... args) {
+        SQLiteStatement st;
+        int gen;
+        synchronized (this) {
+            st = statements.remove(sql);
+            if (st != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            gen = generation;
+        }
+        if (st == null) {
+            st = db.compileStatement(sql);
+        }
+
+        try {
+            SQLiteBackend.bind(st, args);
+            return st.executeUpdateDelete();
+        }
+        finally {
+            st.clearBindings();
+            checkIn(sql, st, gen);
+        }
+    }
+
+    synchronized void checkIn(String sql, SQLiteStatement st, int gen) {
+        if (gen != generation || statements.containsKey(sql)) {
+            st.close();
+        } else {
+            statements.put(sql, st);
+        }
+    }
+
+    /**
+     * Number of statement lookups that found an already compiled statement.
+     */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /**
+     * Number of statement lookups that required compiling the statement.
+     */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    /**
+     * Number of statements currently cached.
+     */
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * Closes and removes all cached statements, statements in use are closed once executed.
+     */
+    public synchronized void clear() {
+        for (SQLiteStatement st : statements.values()) {
+            st.close();
+        }
+        statements.clear();
+        generation++;
+    }
+}
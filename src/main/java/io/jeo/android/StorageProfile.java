@@ -0,0 +1,122 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named sets of storage related pragmas applied to the connections of a {@link SQLiteBackend}
+ * when they are opened.
+ * <p>
+ * Pragmas not supported by the SQLite version of the device are ignored, the settings actually
+ * in effect are reported by {@link SQLiteBackend#getStorageSettings()}.
+ * </p>
+ */
+public enum StorageProfile {
+
+    /**
+     * Mostly read only data such as basemaps and tile packs. Pages are memory mapped rather than
+     * copied into the page cache.
+     */
+    READ_HEAVY(
+        "mmap_size", "268435456",
+        "cache_size", "-8192",
+        "temp_store", "MEMORY"),
+
+    /**
+     * Data collection and editing. Write-ahead logging with relaxed syncing, and a large page
+     * cache and in memory temporary storage for sorting and index builds.
+     */
+    WRITE_HEAVY(
+        "journal_mode", "WAL",
+        "synchronous", "NORMAL",
+        "cache_size", "-16384",
+        "temp_store", "MEMORY"),
+
+    /**
+     * Devices short on memory. A small page cache, no memory mapping and temporary storage on
+     * disk.
+     */
+    LOW_MEMORY(
+        "mmap_size", "0",
+        "cache_size", "-512",
+        "temp_store", "FILE");
+
+    /** pragmas that apply to the database file rather than a connection */
+    static final String JOURNAL_MODE = "journal_mode";
+
+    final Map<String, String> pragmas = new LinkedHashMap<String, String>();
+
+    StorageProfile(String... pragmas) {
+        for (int i = 0; i < pragmas.length; i += 2) {
+            this.pragmas.put(pragmas[i], pragmas[i + 1]);
+        }
+    }
+
+    /**
+     * The pragmas of the profile and the values they are set to.
+     */
+    public Map<String, String> pragmas() {
+        return Collections.unmodifiableMap(pragmas);
+    }
+
+    /**
+     * Applies the profile to a connection.
+     *
+     * @param readOnly Whether the connection is read only, in which case the journal mode is left
+     *   to the writer connection.
+     */
+    void apply(SQLiteDatabase db, boolean readOnly) {
+        for (Map.Entry<String, String> p : pragmas.entrySet()) {
+            if (readOnly && JOURNAL_MODE.equals(p.getKey())) {
+                continue;
+            }
+            // some pragmas return their new value, so they can only be run as queries
+            Cursor cursor = db.rawQuery("PRAGMA " + p.getKey() + "=" + p.getValue(), null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the values in effect on a connection for the pragmas of all profiles.
+     */
+    static Map<String, String> settings(SQLiteDatabase db) {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (StorageProfile profile : values()) {
+            for (String pragma : profile.pragmas.keySet()) {
+                if (settings.containsKey(pragma)) {
+                    continue;
+                }
+                Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+                try {
+                    // unsupported pragmas return no rows
+                    settings.put(pragma, cursor.moveToFirst() ? cursor.getString(0) : null);
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        return settings;
+    }
+}
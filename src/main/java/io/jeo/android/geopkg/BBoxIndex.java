@@ -0,0 +1,272 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import io.jeo.android.LazyGeometry;
+import io.jeo.android.SQLiteBackend;
+import io.jeo.geopkg.Backend.Results;
+import io.jeo.geopkg.Backend.Session;
+
+/**
+ * Spatial index for GeoPackages without the rtree extension, kept in a side table of feature
+ * bounds indexed with composite B-tree indexes.
+ * <p>
+ * The side table <tt>jeo_bbox_&lt;table>_&lt;column></tt> holds the minx, miny, maxx and maxy of
+ * each feature and is maintained by triggers, the feature table itself is left untouched. Since
+ * Android's SQLite cannot compute envelopes in SQL the insert and update triggers only flag the
+ * row as dirty, the bounds of dirty rows are read from the geometry headers and written by
+ * {@link #refresh()}. Queries never write, until the side table is refreshed they return dirty
+ * rows regardless of their bounds.
+ * </p>
+ */
+public class BBoxIndex {
+
+    /**
+     * The name of the side table for a table and geometry column.
+     */
+    public static String name(String table, String column) {
+        return "jeo_bbox_" + table + "_" + column;
+    }
+
+    /**
+     * Creates the index object for the geometry column of a table, as declared in
+     * gpkg_geometry_columns.
+     */
+    public static BBoxIndex of(SQLiteBackend backend, String table) throws IOException {
+        RTreeIndex rtree = RTreeIndex.of(backend, table);
+        return new BBoxIndex(backend, table, rtree.column);
+    }
+
+    final SQLiteBackend backend;
+    final String table;
+    final String column;
+    final String bbox;
+
+    public BBoxIndex(SQLiteBackend backend, String table, String column) {
+        this.backend = backend;
+        this.table = table;
+        this.column = column;
+        this.bbox = name(table, column);
+    }
+
+    /**
+     * The name of the side table.
+     */
+    public String name() {
+        return bbox;
+    }
+
+    /**
+     * Determines if the side table exists.
+     */
+    public boolean exists() throws IOException {
+        return backend.hasTable(bbox);
+    }
+
+    /**
+     * Creates and populates the side table, its indexes and triggers if they do not already
+     * exist.
+     *
+     * @return True if the index was created, false if it already existed.
+     */
+    public boolean create() throws IOException {
+        if (exists()) {
+            // side tables created before rowid changes were tracked
+            Session session = backend.session();
+            try {
+                trackFid(session);
+            } finally {
+                session.close();
+            }
+            return false;
+        }
+
+        String t = quote(table), c = quote(column), b = quote(bbox);
+        Session session = backend.session();
+        try {
+            session.beginTransaction();
+            boolean complete = false;
+            try {
+                session.execute(String.format("CREATE TABLE %s (fid INTEGER PRIMARY KEY, "
+                    + "minx REAL, miny REAL, maxx REAL, maxy REAL, dirty INTEGER NOT NULL)", b));
+                session.execute(String.format("CREATE INDEX %s ON %s (minx, maxx, miny, maxy)",
+                    quote(bbox + "_x"), b));
+                session.execute(String.format("CREATE INDEX %s ON %s (miny, maxy, minx, maxx)",
+                    quote(bbox + "_y"), b));
+                session.execute(String.format("CREATE INDEX %s ON %s (dirty)",
+                    quote(bbox + "_dirty"), b));
+
+                session.execute(String.format("CREATE TRIGGER %s AFTER INSERT ON %s BEGIN "
+                    + "INSERT OR REPLACE INTO %s (fid, dirty) VALUES (NEW.rowid, 1); END",
+                    quote(bbox + "_insert"), t, b));
+                session.execute(String.format("CREATE TRIGGER %s AFTER UPDATE OF %s ON %s BEGIN "
+                    + "INSERT OR REPLACE INTO %s (fid, dirty) VALUES (NEW.rowid, 1); END",
+                    quote(bbox + "_update"), c, t, b));
+                session.execute(String.format("CREATE TRIGGER %s AFTER DELETE ON %s BEGIN "
+                    + "DELETE FROM %s WHERE fid = OLD.rowid; END",
+                    quote(bbox + "_delete"), t, b));
+                trackFid(session);
+
+                session.execute(String.format(
+                    "INSERT INTO %s (fid, dirty) SELECT rowid, 1 FROM %s", b, t));
+                complete = true;
+            } finally {
+                session.endTransaction(complete);
+            }
+        } finally {
+            session.close();
+        }
+
+        refresh();
+        return true;
+    }
+
+    /**
+     * Creates the trigger moving the row of a feature whose rowid changes, flagging it as dirty.
+     */
+    void trackFid(Session session) throws IOException {
+        session.execute(String.format("CREATE TRIGGER IF NOT EXISTS %s AFTER UPDATE ON %s "
+            + "WHEN OLD.rowid <> NEW.rowid BEGIN DELETE FROM %s WHERE fid = OLD.rowid; "
+            + "INSERT OR REPLACE INTO %3$s (fid, dirty) VALUES (NEW.rowid, 1); END",
+            quote(bbox + "_fid"), quote(table), quote(bbox)));
+    }
+
+    /**
+     * Drops the side table along with its indexes and triggers.
+     */
+    public void drop() throws IOException {
+        Session session = backend.session();
+        try {
+            for (String op : new String[]{"insert", "update", "delete", "fid"}) {
+                session.execute("DROP TRIGGER IF EXISTS " + quote(bbox + "_" + op));
+            }
+            session.execute("DROP TABLE IF EXISTS " + quote(bbox));
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Writes the bounds of rows flagged as dirty, reading them from the geometry headers.
+     * <p>
+     * Geometries whose header has no envelope are decoded. Dirty rows are processed in chunks of
+     * {@link SQLiteBackend#getBatchSize()}, each committed in its own transaction. Queries do not
+     * refresh the side table, this is called from the write path after committing changes or from
+     * a background maintenance task.
+     * </p>
+     * @return The number of rows refreshed.
+     */
+    public int refresh() throws IOException {
+        String select = String.format("SELECT b.fid, t.%s FROM %s b "
+            + "LEFT JOIN %s t ON t.rowid = b.fid WHERE b.dirty = 1 LIMIT %d",
+            quote(column), quote(bbox), quote(table), backend.getBatchSize());
+        String update = "UPDATE " + quote(bbox)
+            + " SET minx = ?, miny = ?, maxx = ?, maxy = ?, dirty = 0 WHERE fid = ?";
+        int total = 0;
+
+        Session session = backend.session();
+        try {
+            List<Long> fids = new ArrayList<Long>();
+            List<Envelope> bounds = new ArrayList<Envelope>();
+            do {
+                fids.clear();
+                bounds.clear();
+                Results rs = session.queryPrepared(select);
+                try {
+                    while (rs.next()) {
+                        byte[] blob = rs.getBytes(1);
+                        fids.add(rs.getLong(0));
+                        bounds.add(blob != null ? new LazyGeometry(blob).envelope() : null);
+                    }
+                } finally {
+                    rs.close();
+                }
+                if (fids.isEmpty()) {
+                    break;
+                }
+
+                session.beginTransaction();
+                boolean complete = false;
+                try {
+                    for (int i = 0; i < fids.size(); i++) {
+                        Envelope e = bounds.get(i);
+                        if (e == null || e.isNull()) {
+                            session.executePrepared(update, null, null, null, null, fids.get(i));
+                        } else {
+                            session.executePrepared(update, e.getMinX(), e.getMinY(),
+                                e.getMaxX(), e.getMaxY(), fids.get(i));
+                        }
+                    }
+                    complete = true;
+                } finally {
+                    session.endTransaction(complete);
+                }
+                total += fids.size();
+            } while (fids.size() == backend.getBatchSize());
+        } finally {
+            session.close();
+        }
+        return total;
+    }
+
+    /**
+     * Queries the feature table for features whose bounds intersect a bounding box, along with
+     * all rows flagged as dirty.
+     *
+     * @param session The session to query with.
+     * @param bbox The bounding box.
+     * @param columns The columns to select, all columns if none are specified.
+     */
+    public Results query(Session session, Envelope bbox, String... columns) throws IOException {
+        return session.queryPrepared(sql(columns), args(bbox));
+    }
+
+    /**
+     * Select statement joining the feature table to the side table, with the bounding box
+     * predicate parameters as given by {@link #args(Envelope)}.
+     */
+    String sql(String... columns) {
+        // dirty rows have no bounds and never match the predicate, they are selected separately
+        return select(columns)
+            .append(" WHERE b.minx <= ? AND b.maxx >= ? AND b.miny <= ? AND b.maxy >= ?")
+            .append(" UNION ALL ").append(select(columns)).append(" WHERE b.dirty = 1")
+            .toString();
+    }
+
+    StringBuilder select(String... columns) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns.length == 0) {
+            sql.append("t.*");
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append("t.").append(quote(columns[i]));
+            }
+        }
+        return sql.append(" FROM ").append(quote(table)).append(" t JOIN ").append(quote(bbox))
+            .append(" b ON t.rowid = b.fid");
+    }
+
+    Object[] args(Envelope bbox) {
+        return new Object[]{bbox.getMaxX(), bbox.getMinX(), bbox.getMaxY(), bbox.getMinY()};
+    }
+}
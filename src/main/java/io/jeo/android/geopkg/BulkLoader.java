@@ -0,0 +1,430 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import io.jeo.android.GeometryEncoder;
+import io.jeo.android.SQLiteBackend;
+import io.jeo.android.SQLiteBackend.SQLiteResults;
+import io.jeo.android.SQLiteBackend.SQLiteSession;
+import io.jeo.util.Pair;
+import io.jeo.vector.Feature;
+
+/**
+ * Loads features into a GeoPackage feature table in bulk.
+ * <p>
+ * Features are written with multi-row prepared inserts, committing every
+ * {@link SQLiteBackend#getBatchSize()} features. When the table has an rtree index its triggers
+ * are dropped for the duration of the load and the index is rebuilt in a single pass once all
+ * features are written, rather than being updated one row at a time. The definitions of the
+ * dropped triggers are recorded in the <tt>jeo_suspended_triggers</tt> table in the same
+ * transaction that drops them and only removed once the index has been rebuilt, so that if the
+ * load fails or the process dies mid load the triggers are restored and the index rebuilt by
+ * {@link #recover()}, which the next load calls before starting. The extent and last change of
+ * the table in gpkg_contents are updated at the end of the load.
+ * </p>
+ * <p>
+ * Geometries are encoded on a pool of worker threads by a {@link GeometryEncoder} while the
+ * loading thread binds and executes the insert statements.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * SQLiteBackend backend = new SQLiteBackend(new File("parcels.gpkg"));
+ * new BulkLoader(backend, "parcels").load(features);
+ * </code></pre>
+ * </p>
+ */
+public class BulkLoader {
+
+    /** maximum number of parameters in a single statement */
+    static final int MAX_PARAMETERS = 999;
+
+    /** table holding the definitions of triggers dropped for the duration of a load */
+    static final String SUSPENDED = "jeo_suspended_triggers";
+
+    /** default maximum number of rows per insert statement */
+    public static final int DEFAULT_ROWS_PER_STATEMENT = 50;
+
+    final SQLiteBackend backend;
+    final String table;
+
+    int rowsPerStatement = DEFAULT_ROWS_PER_STATEMENT;
+
+    /** number of geometry encoding threads */
+    int encoders = Math.max(0, Runtime.getRuntime().availableProcessors() - 1);
+
+    public BulkLoader(SQLiteBackend backend, String table) {
+        this.backend = backend;
+        this.table = table;
+    }
+
+    /**
+     * Sets the maximum number of rows written by a single insert statement.
+     * <p>
+     * The actual number may be lower so as not to exceed the SQLite limit on statement
+     * parameters.
+     * </p>
+     */
+    public BulkLoader rowsPerStatement(int rows) {
+        if (rows < 1) {
+            throw new IllegalArgumentException("rows per statement must be positive: " + rows);
+        }
+        this.rowsPerStatement = rows;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads encoding geometries, <tt>0</tt> to encode them on the loading
+     * thread.
+     * <p>
+     * Defaults to one less than the number of available processors.
+     * </p>
+     */
+    public BulkLoader encoders(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException(
+                "number of encoders must not be negative: " + threads);
+        }
+        this.encoders = threads;
+        return this;
+    }
+
+    /**
+     * Loads features into the table.
+     * <p>
+     * Feature attributes are matched to table columns by name, the primary key column is left to
+     * be assigned by the database.
+     * </p>
+     * @return The number of features loaded.
+     */
+    public long load(Iterable<? extends Feature> features) throws IOException {
+        RTreeIndex index = RTreeIndex.of(backend, table);
+        recover();
+
+        SQLiteSession session = backend.session();
+        try {
+            List<String> keys = session.getPrimaryKeys(table);
+            List<String> columns = new ArrayList<String>();
+            for (Pair<String, Class> col : backend.getColumnInfo(table)) {
+                if (!keys.contains(col.first)) {
+                    columns.add(col.first);
+                }
+            }
+
+            boolean indexed = index.exists();
+            if (indexed) {
+                suspendTriggers(session, index);
+            }
+
+            Envelope extent = new Envelope();
+            long count;
+            boolean complete = false;
+            try {
+                count = insert(session, features, columns, index.column, extent);
+                complete = true;
+            } finally {
+                if (indexed) {
+                    restoreTriggers(session);
+                    if (!complete) {
+                        // batches committed before the failure are not indexed yet
+                        try {
+                            rebuild(session, index);
+                        } catch (Exception e) {
+                            // keep the load failure, the suspended record lets recover() retry
+                        }
+                    }
+                }
+            }
+
+            if (indexed) {
+                rebuild(session, index);
+            }
+            updateContents(session, extent);
+            return count;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Restores rtree triggers left suspended by a load that did not complete, rebuilding the
+     * index.
+     *
+     * @return True if any triggers were restored.
+     */
+    public boolean recover() throws IOException {
+        SQLiteSession session = backend.session();
+        try {
+            if (!restoreTriggers(session)) {
+                return false;
+            }
+            rebuild(session, RTreeIndex.of(backend, table));
+        } finally {
+            session.close();
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the index after its triggers have been restored, then removes the definitions of
+     * the suspended triggers.
+     */
+    void rebuild(SQLiteSession session, RTreeIndex index) throws IOException {
+        if (index.exists()) {
+            index.rebuild();
+        }
+        session.executePrepared("DELETE FROM " + SUSPENDED + " WHERE table_name = ?", table);
+    }
+
+    long insert(SQLiteSession session, Iterable<? extends Feature> features, List<String> columns,
+        String geomColumn, Envelope extent) throws IOException {
+        if (columns.isEmpty()) {
+            return insertDefaults(session, features);
+        }
+
+        int rows = Math.max(1, Math.min(rowsPerStatement, MAX_PARAMETERS / columns.size()));
+        int batchSize = backend.getBatchSize();
+
+        List<Object> args = new ArrayList<Object>(rows * columns.size());
+        long count = 0;
+
+        GeometryEncoder encoder = encoders > 0 ? new GeometryEncoder(encoders) : null;
+        session.beginTransaction();
+        boolean complete = false;
+        try {
+            for (Feature f : features) {
+                for (String col : columns) {
+                    if (col.equals(geomColumn)) {
+                        Geometry g = f.geometry();
+                        if (g != null) {
+                            extent.expandToInclude(g.getEnvelopeInternal());
+                        }
+                        args.add(g);
+                    } else {
+                        args.add(f.get(col));
+                    }
+                }
+                count++;
+
+                if (count % rows == 0) {
+                    flush(session, columns, args, encoder);
+                }
+                if (count % batchSize == 0) {
+                    flush(session, columns, args, encoder);
+                    drain(session, columns, encoder);
+                    session.endTransaction(true);
+                    session.beginTransaction();
+                }
+            }
+            flush(session, columns, args, encoder);
+            drain(session, columns, encoder);
+            complete = true;
+        } finally {
+            session.endTransaction(complete);
+            if (encoder != null) {
+                encoder.shutdown();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Inserts a row of default values per feature, for a table with no columns besides the
+     * primary key.
+     */
+    long insertDefaults(SQLiteSession session, Iterable<? extends Feature> features)
+        throws IOException {
+        String sql = "INSERT INTO " + quote(table) + " DEFAULT VALUES";
+        int batchSize = backend.getBatchSize();
+        long count = 0;
+
+        session.beginTransaction();
+        boolean complete = false;
+        try {
+            for (Iterator<? extends Feature> it = features.iterator(); it.hasNext(); ) {
+                it.next();
+                session.executePrepared(sql);
+                if (++count % batchSize == 0) {
+                    session.endTransaction(true);
+                    session.beginTransaction();
+                }
+            }
+            complete = true;
+        } finally {
+            session.endTransaction(complete);
+        }
+        return count;
+    }
+
+    /**
+     * Hands the buffered rows to the encoder, executing the oldest encoded rows if it is at
+     * capacity, or executes them directly if there is no encoder.
+     */
+    void flush(SQLiteSession session, List<String> columns, List<Object> args,
+        GeometryEncoder encoder) throws IOException {
+        if (args.isEmpty()) {
+            return;
+        }
+
+        Object[] values = args.toArray();
+        args.clear();
+
+        if (encoder != null) {
+            values = encoder.submit(values);
+        }
+        if (values != null) {
+            execute(session, columns, values);
+        }
+    }
+
+    /**
+     * Executes all rows still held by the encoder.
+     */
+    void drain(SQLiteSession session, List<String> columns, GeometryEncoder encoder)
+        throws IOException {
+        if (encoder == null) {
+            return;
+        }
+        while (encoder.hasPending()) {
+            execute(session, columns, encoder.take());
+        }
+    }
+
+    void execute(SQLiteSession session, List<String> columns, Object[] values) throws IOException {
+        StringBuilder row = new StringBuilder("(");
+        for (int i = 0; i < columns.size(); i++) {
+            row.append(i > 0 ? ", ?" : "?");
+        }
+        row.append(")");
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(quote(table)).append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(quote(columns.get(i)));
+        }
+        sql.append(") VALUES ");
+        for (int i = 0; i < values.length / columns.size(); i++) {
+            sql.append(i > 0 ? ", " : "").append(row);
+        }
+
+        session.executePrepared(sql.toString(), values);
+    }
+
+    /**
+     * Drops the triggers maintaining the rtree index and its change tracking.
+     * <p>
+     * The definitions are recorded in {@link #SUSPENDED} in the same transaction.
+     * </p>
+     */
+    void suspendTriggers(SQLiteSession session, RTreeIndex index) throws IOException {
+        List<String> triggers = new ArrayList<String>();
+        List<String> names = new ArrayList<String>();
+
+        SQLiteResults rs = session.queryPrepared("SELECT name, sql FROM sqlite_master "
+            + "WHERE type = ? AND tbl_name = ? AND (name LIKE ? OR name LIKE ?)",
+            "trigger", table, index.name() + "%", index.dirty + "%");
+        try {
+            while (rs.next()) {
+                names.add(rs.getString(0));
+                triggers.add(rs.getString(1));
+            }
+        } finally {
+            rs.close();
+        }
+
+        session.beginTransaction();
+        boolean complete = false;
+        try {
+            session.execute("CREATE TABLE IF NOT EXISTS " + SUSPENDED
+                + " (name TEXT PRIMARY KEY, table_name TEXT NOT NULL, sql TEXT NOT NULL)");
+            for (int i = 0; i < names.size(); i++) {
+                session.executePrepared("INSERT OR REPLACE INTO " + SUSPENDED
+                    + " (name, table_name, sql) VALUES (?, ?, ?)", names.get(i), table,
+                    triggers.get(i));
+                session.execute("DROP TRIGGER " + quote(names.get(i)));
+            }
+            complete = true;
+        } finally {
+            session.endTransaction(complete);
+        }
+    }
+
+    /**
+     * Recreates the suspended triggers of the table, replacing any already restored.
+     * <p>
+     * The definitions are kept in {@link #SUSPENDED} until the index has been rebuilt, see
+     * {@link #rebuild(SQLiteSession, RTreeIndex)}.
+     * </p>
+     * @return True if the table had suspended triggers.
+     */
+    boolean restoreTriggers(SQLiteSession session) throws IOException {
+        if (!backend.hasTable(SUSPENDED)) {
+            return false;
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<String> triggers = new ArrayList<String>();
+        SQLiteResults rs = session.queryPrepared(
+            "SELECT name, sql FROM " + SUSPENDED + " WHERE table_name = ?", table);
+        try {
+            while (rs.next()) {
+                names.add(rs.getString(0));
+                triggers.add(rs.getString(1));
+            }
+        } finally {
+            rs.close();
+        }
+        if (triggers.isEmpty()) {
+            return false;
+        }
+
+        session.beginTransaction();
+        boolean complete = false;
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                session.execute("DROP TRIGGER IF EXISTS " + quote(names.get(i)));
+                session.execute(triggers.get(i));
+            }
+            complete = true;
+        } finally {
+            session.endTransaction(complete);
+        }
+        return true;
+    }
+
+    void updateContents(SQLiteSession session, Envelope extent) throws IOException {
+        if (extent.isNull()) {
+            session.executePrepared("UPDATE gpkg_contents "
+                + "SET last_change = strftime('%Y-%m-%dT%H:%M:%fZ', 'now') WHERE table_name = ?",
+                table);
+            return;
+        }
+        session.executePrepared("UPDATE gpkg_contents "
+            + "SET last_change = strftime('%Y-%m-%dT%H:%M:%fZ', 'now'), "
+            + "min_x = min(coalesce(min_x, ?1), ?1), min_y = min(coalesce(min_y, ?2), ?2), "
+            + "max_x = max(coalesce(max_x, ?3), ?3), max_y = max(coalesce(max_y, ?4), ?4) "
+            + "WHERE table_name = ?5", extent.getMinX(), extent.getMinY(), extent.getMaxX(),
+            extent.getMaxY(), table);
+    }
+}
@@ -0,0 +1,392 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import io.jeo.android.LazyGeometry;
+import io.jeo.android.SQLiteBackend;
+import io.jeo.geopkg.Backend.Results;
+import io.jeo.geopkg.Backend.Session;
+
+/**
+ * Trigger based log of the changes made to GeoPackage feature tables.
+ * <p>
+ * Once tracking is enabled for a table every insert, update and delete of one of its rows is
+ * recorded in the <tt>jeo_changes</tt> table under an increasing sequence number, along with the
+ * geometry blobs before and after the change. The envelope affected by a change is read from the
+ * headers of those blobs without decoding them, so that consumers can re-render or sync only the
+ * areas changed since the last sequence number they saw.
+ * </p>
+ * <p>
+ * Rewriting a table with {@link HilbertLayout} changes the id of every feature but none of their
+ * geometries, it is recorded as a single {@link Type#REMAP} change rather than a delete and an
+ * insert per feature.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * ChangeLog changes = new ChangeLog(backend);
+ * changes.enable("parcels");
+ * long seq = changes.sequence();
+ * ...
+ * Envelope dirty = changes.dirty("parcels", seq);
+ * </code></pre>
+ * </p>
+ */
+public class ChangeLog {
+
+    /** name of the change log table */
+    public static final String TABLE = "jeo_changes";
+
+    /** trigger operations */
+    static final String[] OPS = {"insert", "update", "delete"};
+
+    /**
+     * Type of change.
+     */
+    public static enum Type {
+        INSERT, UPDATE, DELETE,
+
+        /**
+         * The ids of all features of the table changed, see {@link HilbertLayout#mapping()}. The
+         * change has no feature id or geometries.
+         */
+        REMAP;
+    }
+
+    /**
+     * A change to a single feature.
+     */
+    public static class Change {
+        final long seq;
+        final String table;
+        final long fid;
+        final Type type;
+        final byte[] before, after;
+
+        Change(long seq, String table, long fid, Type type, byte[] before, byte[] after) {
+            this.seq = seq;
+            this.table = table;
+            this.fid = fid;
+            this.type = type;
+            this.before = before;
+            this.after = after;
+        }
+
+        /**
+         * The sequence number of the change.
+         */
+        public long sequence() {
+            return seq;
+        }
+
+        /**
+         * The table changed.
+         */
+        public String table() {
+            return table;
+        }
+
+        /**
+         * The id of the feature changed.
+         */
+        public long fid() {
+            return fid;
+        }
+
+        public Type type() {
+            return type;
+        }
+
+        /**
+         * The union of the envelopes of the feature geometry before and after the change.
+         */
+        public Envelope envelope() throws IOException {
+            Envelope e = new Envelope();
+            expand(e, before);
+            expand(e, after);
+            return e;
+        }
+
+        @Override
+        public String toString() {
+            return seq + " " + type + " " + table + "." + fid;
+        }
+    }
+
+    final SQLiteBackend backend;
+
+    public ChangeLog(SQLiteBackend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Determines if changes to a table are being tracked.
+     */
+    public boolean isEnabled(String table) throws IOException {
+        return backend.hasTable(TABLE) && hasTrigger(trigger(table, "insert"));
+    }
+
+    /**
+     * Starts tracking changes to a feature table.
+     *
+     * @return True if tracking was enabled, false if it already was.
+     */
+    public boolean enable(String table) throws IOException {
+        if (isEnabled(table)) {
+            return false;
+        }
+
+        String geom = quote(RTreeIndex.of(backend, table).column);
+        Session session = backend.session();
+        try {
+            session.beginTransaction();
+            boolean complete = false;
+            try {
+                session.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                    + "seq INTEGER PRIMARY KEY AUTOINCREMENT, table_name TEXT NOT NULL, "
+                    + "fid INTEGER NOT NULL, type TEXT NOT NULL, old_geom BLOB, new_geom BLOB)");
+                session.execute("CREATE INDEX IF NOT EXISTS " + TABLE + "_table ON " + TABLE
+                    + " (table_name, seq)");
+
+                String literal = "'" + table.replace("'", "''") + "'";
+                session.execute(String.format("CREATE TRIGGER %s AFTER INSERT ON %s BEGIN "
+                    + "INSERT INTO %s (table_name, fid, type, old_geom, new_geom) "
+                    + "VALUES (%s, NEW.rowid, 'INSERT', NULL, NEW.%s); END",
+                    quote(trigger(table, "insert")), quote(table), TABLE, literal, geom));
+                session.execute(String.format("CREATE TRIGGER %s AFTER UPDATE ON %s BEGIN "
+                    + "INSERT INTO %s (table_name, fid, type, old_geom, new_geom) "
+                    + "VALUES (%s, NEW.rowid, 'UPDATE', OLD.%s, NEW.%5$s); END",
+                    quote(trigger(table, "update")), quote(table), TABLE, literal, geom));
+                session.execute(String.format("CREATE TRIGGER %s AFTER DELETE ON %s BEGIN "
+                    + "INSERT INTO %s (table_name, fid, type, old_geom, new_geom) "
+                    + "VALUES (%s, OLD.rowid, 'DELETE', OLD.%s, NULL); END",
+                    quote(trigger(table, "delete")), quote(table), TABLE, literal, geom));
+                complete = true;
+            } finally {
+                session.endTransaction(complete);
+            }
+        } finally {
+            session.close();
+        }
+        return true;
+    }
+
+    /**
+     * Stops tracking changes to a table and removes its recorded changes.
+     */
+    public void disable(String table) throws IOException {
+        Session session = backend.session();
+        try {
+            for (String op : OPS) {
+                session.execute("DROP TRIGGER IF EXISTS " + quote(trigger(table, op)));
+            }
+            if (backend.hasTable(TABLE)) {
+                session.executePrepared("DELETE FROM " + TABLE + " WHERE table_name = ?", table);
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * The sequence number of the last recorded change, <tt>0</tt> if none.
+     */
+    public long sequence() throws IOException {
+        return max("SELECT max(seq) FROM " + TABLE);
+    }
+
+    /**
+     * The sequence number of the last recorded change to a table, <tt>0</tt> if none.
+     */
+    public long sequence(String table) throws IOException {
+        return max("SELECT max(seq) FROM " + TABLE + " WHERE table_name = ?", table);
+    }
+
+    long max(String sql, Object... args) throws IOException {
+        if (!backend.hasTable(TABLE)) {
+            return 0;
+        }
+        Session session = backend.session();
+        try {
+            Results rs = session.queryPrepared(sql, args);
+            try {
+                return rs.next() ? rs.getLong(0) : 0;
+            } finally {
+                rs.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * The changes to all tracked tables made after a sequence number, in sequence order.
+     */
+    public List<Change> since(long seq) throws IOException {
+        return changes(" WHERE seq > ? ORDER BY seq", seq);
+    }
+
+    /**
+     * The changes to a table made after a sequence number, in sequence order.
+     */
+    public List<Change> since(String table, long seq) throws IOException {
+        return changes(" WHERE table_name = ? AND seq > ? ORDER BY seq", table, seq);
+    }
+
+    /**
+     * The union of the envelopes affected by the changes to a table made after a sequence number.
+     * <p>
+     * The envelopes are read from the geometry headers, geometries whose header has no envelope
+     * are decoded. The envelope is null if there were no changes.
+     * </p>
+     */
+    public Envelope dirty(String table, long seq) throws IOException {
+        Envelope dirty = new Envelope();
+        if (!backend.hasTable(TABLE)) {
+            return dirty;
+        }
+
+        Session session = backend.session();
+        try {
+            Results rs = session.queryPrepared("SELECT old_geom, new_geom FROM " + TABLE
+                + " WHERE table_name = ? AND seq > ?", table, seq);
+            try {
+                while (rs.next()) {
+                    for (int i = 0; i < 2; i++) {
+                        expand(dirty, rs.getBytes(i));
+                    }
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            session.close();
+        }
+        return dirty;
+    }
+
+    /**
+     * Expands an envelope to include that of a geometry blob, if any and not empty.
+     */
+    static void expand(Envelope e, byte[] blob) throws IOException {
+        if (blob != null) {
+            Envelope b = new LazyGeometry(blob).envelope();
+            if (b != null && !b.isNull()) {
+                e.expandToInclude(b);
+            }
+        }
+    }
+
+    /**
+     * Removes the changes recorded up to and including a sequence number, once all consumers have
+     * seen them.
+     */
+    public void prune(long seq) throws IOException {
+        if (!backend.hasTable(TABLE)) {
+            return;
+        }
+        Session session = backend.session();
+        try {
+            session.executePrepared("DELETE FROM " + TABLE + " WHERE seq <= ?", seq);
+        } finally {
+            session.close();
+        }
+    }
+
+    List<Change> changes(String where, Object... args) throws IOException {
+        List<Change> changes = new ArrayList<Change>();
+        if (!backend.hasTable(TABLE)) {
+            return changes;
+        }
+
+        Session session = backend.session();
+        try {
+            Results rs = session.queryPrepared(
+                "SELECT seq, table_name, fid, type, old_geom, new_geom FROM " + TABLE + where, args);
+            try {
+                while (rs.next()) {
+                    changes.add(new Change(rs.getLong(0), rs.getString(1), rs.getLong(2),
+                        Type.valueOf(rs.getString(3)), rs.getBytes(4), rs.getBytes(5)));
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            session.close();
+        }
+        return changes;
+    }
+
+    /**
+     * Drops the triggers tracking a table within the transaction of a session, returning their
+     * definitions for {@link #remap(Session, String, List)}.
+     */
+    List<String> suspend(Session session, String table) throws IOException {
+        List<String> triggers = new ArrayList<String>();
+        for (String op : OPS) {
+            Results rs = session.queryPrepared(
+                "SELECT sql FROM sqlite_master WHERE type = ? AND name = ?",
+                "trigger", trigger(table, op));
+            try {
+                if (rs.next()) {
+                    triggers.add(rs.getString(0));
+                }
+            } finally {
+                rs.close();
+            }
+            session.execute("DROP TRIGGER IF EXISTS " + quote(trigger(table, op)));
+        }
+        return triggers;
+    }
+
+    /**
+     * Recreates the triggers dropped by {@link #suspend(Session, String)} and records the ids of
+     * the features of the table as changed.
+     */
+    void remap(Session session, String table, List<String> triggers) throws IOException {
+        for (String sql : triggers) {
+            session.execute(sql);
+        }
+        session.executePrepared("INSERT INTO " + TABLE + " (table_name, fid, type) "
+            + "VALUES (?, 0, ?)", table, Type.REMAP.name());
+    }
+
+    String trigger(String table, String op) {
+        return TABLE + "_" + table + "_" + op;
+    }
+
+    boolean hasTrigger(String name) throws IOException {
+        Session session = backend.session();
+        try {
+            Results rs = session.queryPrepared(
+                "SELECT 1 FROM sqlite_master WHERE type = 'trigger' AND name = ?", name);
+            try {
+                return rs.next();
+            } finally {
+                rs.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+}
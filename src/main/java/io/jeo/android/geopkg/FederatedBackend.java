@@ -0,0 +1,372 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import io.jeo.android.SQLiteBackend;
+import io.jeo.geopkg.Backend.Results;
+import io.jeo.geopkg.Backend.Session;
+
+/**
+ * Backend that federates several GeoPackage files.
+ * <p>
+ * The first file is opened as the main database and the following ones are attached to it.
+ * Temporary views named after the GeoPackage metadata tables shadow those of the main database
+ * and combine the metadata of the attached files, and feature tables present in more than one of
+ * them are shadowed by a view of the same name combining their rows with <tt>UNION ALL</tt>. A
+ * workspace over this backend therefore sees the layers of those files as if they were in one.
+ * Feature ids are only unique within each file.
+ * </p>
+ * <p>
+ * The backend is read only. Write-ahead logging is not supported since reader connections would
+ * not see the attached databases.
+ * </p>
+ * <p>
+ * SQLite limits the number of attached databases to {@link #MAX_ATTACHED} by default. Files
+ * beyond the first <tt>MAX_ATTACHED + 1</tt> are attached in groups to additional in-memory
+ * connections, which the views of the main database cannot reach.
+ * {@link #query(Session, String, String, Envelope, String...)} queries every connection and
+ * chains their results, so bounding box queries always cover all files.
+ * </p>
+ */
+public class FederatedBackend extends SQLiteBackend {
+
+    /** GeoPackage metadata tables, the columns to select, and the columns that identify a row */
+    static final String[][] METADATA = {
+        {"gpkg_contents", "table_name, data_type, identifier, description, "
+            + "max(last_change) AS last_change, min(min_x) AS min_x, min(min_y) AS min_y, "
+            + "max(max_x) AS max_x, max(max_y) AS max_y, srs_id", "table_name"},
+        {"gpkg_geometry_columns", "*", "table_name, column_name"},
+        {"gpkg_spatial_ref_sys", "*", "srs_id"}
+    };
+
+    /** maximum number of attached databases, the SQLITE_MAX_ATTACHED default */
+    public static final int MAX_ATTACHED = 10;
+
+    /** table names by schema name, in attach order */
+    final Map<String, Set<String>> schemas = new LinkedHashMap<String, Set<String>>();
+
+    /** connection each schema is attached to, by schema name */
+    final Map<String, SQLiteDatabase> connections = new HashMap<String, SQLiteDatabase>();
+
+    /** additional connections holding the files beyond the attach limit of the main one */
+    final List<SQLiteDatabase> extra = new ArrayList<SQLiteDatabase>();
+
+    public FederatedBackend(List<File> files) throws IOException {
+        super(main(files));
+
+        boolean complete = false;
+        try {
+            connections.put("main", db);
+            schemas.put("main", tables("main"));
+            SQLiteDatabase conn = db;
+            int attached = 0;
+            for (int i = 1; i < files.size(); i++) {
+                if (attached == MAX_ATTACHED) {
+                    conn = SQLiteDatabase.create(null);
+                    extra.add(conn);
+                    attached = 0;
+                }
+
+                String schema = "gpkg" + i;
+                conn.execSQL("ATTACH DATABASE ? AS " + quote(schema),
+                    new Object[]{files.get(i).getPath()});
+                attached++;
+                connections.put(schema, conn);
+                schemas.put(schema, tables(schema));
+            }
+
+            for (String[] md : METADATA) {
+                createView(md[0], md[1], " GROUP BY " + md[2]);
+            }
+
+            Set<String> seen = new HashSet<String>();
+            for (String table : featureTables(db)) {
+                if (!seen.add(table)) {
+                    createView(table, "*", "");
+                }
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Returns the file opened as the main database.
+     */
+    static File main(List<File> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IOException("No files to federate");
+        }
+        return files.get(0);
+    }
+
+    /**
+     * The names of the schemas the files are attached as, in the order of the files.
+     */
+    public List<String> getSchemas() {
+        return new ArrayList<String>(schemas.keySet());
+    }
+
+    @Override
+    public synchronized boolean enableWriteAheadLogging(int maxReaders) throws IOException {
+        return false;
+    }
+
+    /**
+     * Queries the features of a table whose bounds intersect a bounding box across all files, as
+     * a <tt>UNION ALL</tt> statement per connection whose results are read one after the other.
+     * <p>
+     * Each file is filtered with its own rtree index when it has one, files without an index
+     * contribute all their rows and filtering is left to the caller.
+     * </p>
+     * @param session The session to query the files of the main connection with.
+     * @param table The feature table.
+     * @param column The geometry column.
+     * @param bbox The bounding box.
+     * @param columns The columns to select, all columns if none are specified.
+     */
+    public Results query(Session session, String table, String column, Envelope bbox,
+        String... columns) throws IOException {
+        String rtree = RTreeIndex.name(table, column);
+
+        Map<SQLiteDatabase, StringBuilder> sqls =
+            new LinkedHashMap<SQLiteDatabase, StringBuilder>();
+        Map<SQLiteDatabase, List<Object>> argss = new HashMap<SQLiteDatabase, List<Object>>();
+        for (Map.Entry<String, Set<String>> e : schemas.entrySet()) {
+            if (!e.getValue().contains(table)) {
+                continue;
+            }
+
+            SQLiteDatabase conn = connections.get(e.getKey());
+            StringBuilder sql = sqls.get(conn);
+            List<Object> args = argss.get(conn);
+            if (sql == null) {
+                sqls.put(conn, sql = new StringBuilder());
+                argss.put(conn, args = new ArrayList<Object>());
+            }
+
+            String schema = quote(e.getKey());
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT ");
+            if (columns.length == 0) {
+                sql.append("t.*");
+            } else {
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i > 0 ? ", " : "").append("t.").append(quote(columns[i]));
+                }
+            }
+            sql.append(" FROM ").append(schema).append(".").append(quote(table)).append(" t");
+
+            if (e.getValue().contains(rtree)) {
+                sql.append(" JOIN ").append(schema).append(".").append(quote(rtree))
+                   .append(" r ON t.rowid = r.id")
+                   .append(" WHERE r.minx <= ? AND r.maxx >= ? AND r.miny <= ? AND r.maxy >= ?");
+                args.add(bbox.getMaxX());
+                args.add(bbox.getMinX());
+                args.add(bbox.getMaxY());
+                args.add(bbox.getMinY());
+            }
+        }
+
+        if (sqls.isEmpty()) {
+            throw new IOException("No such table: " + table);
+        }
+
+        List<Results> parts = new ArrayList<Results>();
+        boolean complete = false;
+        try {
+            for (Map.Entry<SQLiteDatabase, StringBuilder> e : sqls.entrySet()) {
+                String sql = e.getValue().toString();
+                Object[] args = argss.get(e.getKey()).toArray();
+                parts.add(e.getKey() == db ? session.queryPrepared(sql, args)
+                    : query(e.getKey(), sql, args));
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (Results rs : parts) {
+                    rs.close();
+                }
+            }
+        }
+        return parts.size() == 1 ? parts.get(0) : new ChainedResults(parts);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (SQLiteDatabase conn : extra) {
+                conn.close();
+            }
+        } finally {
+            super.close();
+        }
+    }
+
+    Set<String> tables(String schema) {
+        Set<String> tables = new HashSet<String>();
+        Cursor cursor = connections.get(schema).rawQuery(String.format(
+            "SELECT name FROM %s.sqlite_master WHERE type IN ('table', 'view')", quote(schema)), null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    /**
+     * Feature and tile tables of the files attached to a connection, a table appears once for
+     * each file containing it.
+     */
+    List<String> featureTables(SQLiteDatabase conn) {
+        List<String> tables = new ArrayList<String>();
+        for (Map.Entry<String, Set<String>> e : schemas.entrySet()) {
+            if (connections.get(e.getKey()) != conn || !e.getValue().contains("gpkg_contents")) {
+                continue;
+            }
+            Cursor cursor = conn.rawQuery(
+                "SELECT table_name FROM " + quote(e.getKey()) + ".gpkg_contents", null);
+            try {
+                while (cursor.moveToNext()) {
+                    tables.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return tables;
+    }
+
+    void createView(String table, String select, String groupBy) {
+        StringBuilder union = new StringBuilder();
+        for (Map.Entry<String, Set<String>> e : schemas.entrySet()) {
+            if (connections.get(e.getKey()) == db && e.getValue().contains(table)) {
+                if (union.length() > 0) {
+                    union.append(" UNION ALL ");
+                }
+                union.append("SELECT * FROM ")
+                     .append(quote(e.getKey())).append(".").append(quote(table));
+            }
+        }
+        if (union.length() == 0) {
+            return;
+        }
+
+        db.execSQL(String.format("CREATE TEMP VIEW %s AS SELECT %s FROM (%s)%s",
+            quote(table), select, union, groupBy));
+    }
+
+    /**
+     * Results reading the results of several queries one after the other.
+     */
+    class ChainedResults extends Results {
+        final List<Results> parts;
+
+        /** index of the results being read, results before it are closed */
+        int part;
+
+        ChainedResults(List<Results> parts) {
+            this.parts = parts;
+        }
+
+        Results current() {
+            return parts.get(part);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (part < parts.size()) {
+                if (current().next()) {
+                    return true;
+                }
+                current().close();
+                part++;
+            }
+            return false;
+        }
+
+        @Override
+        public Object getObject(int idx, Class t) throws IOException {
+            return current().getObject(idx, t);
+        }
+
+        @Override
+        public long getLong(int idx) throws IOException {
+            return current().getLong(idx);
+        }
+
+        @Override
+        public String getString(String col) throws IOException {
+            return current().getString(col);
+        }
+
+        @Override
+        public byte[] getBytes(int i) throws IOException {
+            return current().getBytes(i);
+        }
+
+        @Override
+        public String getString(int idx) throws IOException {
+            return current().getString(idx);
+        }
+
+        @Override
+        public int getInt(int idx) throws IOException {
+            return current().getInt(idx);
+        }
+
+        @Override
+        public double getDouble(int idx) throws IOException {
+            return current().getDouble(idx);
+        }
+
+        @Override
+        public boolean getBoolean(int idx) throws IOException {
+            return current().getBoolean(idx);
+        }
+
+        @Override
+        public void closeInternal() throws Exception {
+            for (int i = part; i < parts.size(); i++) {
+                parts.get(i).close();
+            }
+        }
+    }
+}
@@ -14,7 +14,10 @@
  */
 package io.jeo.android.geopkg;
 
+import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.util.Arrays;
 
 import io.jeo.android.SQLiteBackend;
 import io.jeo.geopkg.Backend;
@@ -23,14 +26,43 @@ import io.jeo.geopkg.GeoPkgOpts;
 
 /**
  * Driver for the GeoPackage format, that utilizes Android SQLite capabilities. 
- * 
+ * <p>
+ * When the file is a directory the GeoPackage files it contains are opened together with a
+ * {@link FederatedBackend}, exposing the layers of all files as a single workspace.
+ * </p>
+ * <p>
+ * Large amounts of features are best written with a {@link BulkLoader}, which defers updating the
+ * spatial index until the end of the load.
+ * </p>
+ * <p>
+ * Changes to feature tables can be tracked with a {@link ChangeLog}, so that consumers only need to
+ * revisit the areas changed since they last looked.
+ * </p>
+ * <p>
+ * Tables that are queried by bounding box can be rewritten in spatial order with a
+ * {@link HilbertLayout}, so that a query reads fewer pages.
+ * </p>
  * @author Justin Deoliveira, OpenGeo
  */
 public class GeoPackage extends GeoPkgBaseDriver {
 
     @Override
     protected Backend backend(GeoPkgOpts gpkgOpts) throws IOException {
-        return new SQLiteBackend(gpkgOpts.getFile());
+        File file = gpkgOpts.getFile();
+        if (file.isDirectory()) {
+            File[] files = file.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File f) {
+                    return f.isFile() && f.getName().toLowerCase().endsWith(".gpkg");
+                }
+            });
+            if (files == null || files.length == 0) {
+                throw new IOException("No GeoPackage files in directory: " + file);
+            }
+            Arrays.sort(files);
+            return new FederatedBackend(Arrays.asList(files));
+        }
+        return new SQLiteBackend(file);
     }
 
 }
@@ -0,0 +1,338 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+import io.jeo.android.LazyGeometry;
+import io.jeo.android.SQLiteBackend;
+import io.jeo.geopkg.Backend.Results;
+import io.jeo.geopkg.Backend.Session;
+import io.jeo.util.Pair;
+
+/**
+ * Rewrites a GeoPackage feature table so that its rows are stored in Hilbert curve order of the
+ * feature centers, so that features that are close in space are also close on disk and a bounding
+ * box query touches fewer pages.
+ * <p>
+ * Rows are assigned new feature ids in curve order and reinserted in that order, the original id
+ * of every feature is kept in the <tt>jeo_fid_map_&lt;table></tt> table (see
+ * {@link #mapping()}) which survives repeated rewrites. Feature centers are taken from the
+ * envelopes in the geometry headers, so geometries are not decoded. The rtree and
+ * {@link BBoxIndex} indexes of the table are rebuilt once the rows are rewritten, running
+ * <tt>VACUUM</tt> afterwards additionally makes the table pages contiguous in the file. When
+ * the table is tracked by a {@link ChangeLog} its triggers are suspended during the rewrite and a
+ * single {@link ChangeLog.Type#REMAP} change is recorded instead.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * new HilbertLayout(backend, "parcels").rewrite();
+ * </code></pre>
+ * </p>
+ */
+public class HilbertLayout {
+
+    /** order of the curve, the extent of the table is divided into a 2^ORDER square grid */
+    static final int ORDER = 16;
+
+    /**
+     * The name of the table mapping original to current feature ids for a table.
+     */
+    public static String mapping(String table) {
+        return "jeo_fid_map_" + table;
+    }
+
+    /**
+     * Computes the distance along a Hilbert curve of a cell of a 2^order square grid.
+     */
+    public static long hilbert(int order, int x, int y) {
+        int n = 1 << order;
+        long d = 0;
+        for (int s = n >> 1; s > 0; s >>= 1) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    final SQLiteBackend backend;
+    final String table;
+
+    public HilbertLayout(SQLiteBackend backend, String table) {
+        this.backend = backend;
+        this.table = table;
+    }
+
+    /**
+     * The name of the table mapping original to current feature ids.
+     */
+    public String mapping() {
+        return mapping(table);
+    }
+
+    /**
+     * Rewrites the table in Hilbert curve order.
+     *
+     * @return The number of rows rewritten.
+     */
+    public int rewrite() throws IOException {
+        RTreeIndex rtree = RTreeIndex.of(backend, table);
+        ChangeLog log = new ChangeLog(backend);
+        boolean logged = log.isEnabled(table);
+        long[] order;
+
+        Session session = backend.session();
+        try {
+            List<String> keys = session.getPrimaryKeys(table);
+            String key = keys.isEmpty() ? "rowid" : quote(keys.get(0));
+
+            order = order(session, rtree.column);
+            if (order.length == 0) {
+                return 0;
+            }
+
+            session.beginTransaction();
+            boolean complete = false;
+            try {
+                writeMapping(session, order);
+                List<String> triggers = logged ? log.suspend(session, table) : null;
+                rewriteRows(session, key, keys);
+                if (logged) {
+                    log.remap(session, table, triggers);
+                }
+                complete = true;
+            } finally {
+                session.endTransaction(complete);
+            }
+        } finally {
+            session.close();
+        }
+
+        if (rtree.exists()) {
+            rtree.rebuild();
+        }
+        BBoxIndex bbox = new BBoxIndex(backend, table, rtree.column);
+        if (bbox.exists()) {
+            bbox.refresh();
+        }
+        return order.length;
+    }
+
+    /**
+     * Reads the current feature ids sorted by the curve distance of their centers.
+     * <p>
+     * Distances are computed while the rows are read, against the extent recorded in
+     * gpkg_contents or else one computed by a first pass over the geometry headers, and are kept
+     * in primitive arrays.
+     * </p>
+     */
+    long[] order(Session session, String column) throws IOException {
+        Envelope extent = extent(session, column);
+        int n = 1 << ORDER;
+        double w = extent.getWidth() > 0 ? extent.getWidth() : 1;
+        double h = extent.getHeight() > 0 ? extent.getHeight() : 1;
+
+        // each key holds the distance above the index of the row in the low 31 bits, so sorting
+        // the keys orders rows by distance and ties by current id. Rows without geometry have
+        // a distance past the end of the curve, which needs all 64 bits, so keys are compared
+        // unsigned by flipping the sign bit
+        long[] fids = new long[count(session)];
+        long[] keys = new long[fids.length];
+        int size = 0;
+
+        Results rs = session.queryPrepared(String.format(
+            "SELECT rowid, %s FROM %s ORDER BY rowid", quote(column), quote(table)));
+        try {
+            while (rs.next()) {
+                if (size == fids.length) {
+                    fids = Arrays.copyOf(fids, Math.max(16, size * 2));
+                    keys = Arrays.copyOf(keys, fids.length);
+                }
+
+                byte[] blob = rs.getBytes(1);
+                Envelope e = blob != null ? new LazyGeometry(blob).envelope() : null;
+                long d = (long) n * n;
+                if (e != null && !e.isNull()) {
+                    int x = cell((e.centre().x - extent.getMinX()) / w * n, n);
+                    int y = cell((e.centre().y - extent.getMinY()) / h * n, n);
+                    d = hilbert(ORDER, x, y);
+                }
+                fids[size] = rs.getLong(0);
+                keys[size] = ((d << 31) | size) ^ Long.MIN_VALUE;
+                size++;
+            }
+        } finally {
+            rs.close();
+        }
+
+        Arrays.sort(keys, 0, size);
+
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = fids[(int) (keys[i] & Integer.MAX_VALUE)];
+        }
+        return order;
+    }
+
+    static int cell(double c, int n) {
+        return (int) Math.max(0, Math.min(n - 1, c));
+    }
+
+    int count(Session session) throws IOException {
+        Results rs = session.queryPrepared("SELECT count(*) FROM " + quote(table));
+        try {
+            return rs.next() ? rs.getInt(0) : 0;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * The extent of the table as recorded in gpkg_contents, computed from the geometry headers
+     * when it is not recorded.
+     */
+    Envelope extent(Session session, String column) throws IOException {
+        if (backend.hasTable("gpkg_contents")) {
+            Results rs = session.queryPrepared("SELECT min_x, min_y, max_x, max_y "
+                + "FROM gpkg_contents WHERE table_name = ?", table);
+            try {
+                if (rs.next() && rs.getString(0) != null && rs.getString(1) != null
+                        && rs.getString(2) != null && rs.getString(3) != null) {
+                    return new Envelope(rs.getDouble(0), rs.getDouble(2), rs.getDouble(1),
+                        rs.getDouble(3));
+                }
+            } finally {
+                rs.close();
+            }
+        }
+
+        Envelope extent = new Envelope();
+        Results rs = session.queryPrepared(
+            String.format("SELECT %s FROM %s", quote(column), quote(table)));
+        try {
+            while (rs.next()) {
+                byte[] blob = rs.getBytes(0);
+                Envelope e = blob != null ? new LazyGeometry(blob).envelope() : null;
+                if (e != null) {
+                    extent.expandToInclude(e);
+                }
+            }
+        } finally {
+            rs.close();
+        }
+        return extent;
+    }
+
+    /**
+     * Writes the mapping of original to new feature ids, composing it with any mapping left by a
+     * previous rewrite.
+     * <p>
+     * A row inserted since the previous rewrite has no original id and keeps its current id as
+     * original, unless that id is already the original id of another row in which case it is
+     * given an unused one.
+     * </p>
+     */
+    void writeMapping(Session session, long[] order) throws IOException {
+        String map = quote(mapping());
+
+        // original ids by current id
+        Map<Long, Long> original = new HashMap<Long, Long>();
+        if (backend.hasTable(mapping())) {
+            Results rs = session.queryPrepared("SELECT original_fid, fid FROM " + map);
+            try {
+                while (rs.next()) {
+                    original.put(rs.getLong(1), rs.getLong(0));
+                }
+            } finally {
+                rs.close();
+            }
+            session.execute("DELETE FROM " + map);
+        } else {
+            session.execute("CREATE TABLE " + map
+                + " (original_fid INTEGER PRIMARY KEY, fid INTEGER NOT NULL UNIQUE)");
+        }
+
+        // original ids in use, and the greatest id seen
+        Set<Long> taken = new HashSet<Long>(original.values());
+        long max = 0;
+        for (Long id : taken) {
+            max = Math.max(max, id);
+        }
+        for (long fid : order) {
+            max = Math.max(max, fid);
+        }
+
+        session.execute("CREATE TEMP TABLE jeo_fid_order "
+            + "(fid INTEGER PRIMARY KEY, new_fid INTEGER NOT NULL)");
+        for (int i = 0; i < order.length; i++) {
+            Long orig = original.get(order[i]);
+            if (orig == null) {
+                orig = taken.add(order[i]) ? order[i] : ++max;
+            }
+            session.executePrepared("INSERT INTO " + map + " VALUES (?, ?)", orig, i + 1);
+            session.executePrepared("INSERT INTO jeo_fid_order VALUES (?, ?)", order[i], i + 1);
+        }
+    }
+
+    /**
+     * Copies the rows aside, then reinserts them under their new ids in curve order.
+     */
+    void rewriteRows(Session session, String key, List<String> keys) throws IOException {
+        StringBuilder cols = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (Pair<String, Class> col : backend.getColumnInfo(table)) {
+            if (!keys.contains(col.first)) {
+                cols.append(", ").append(quote(col.first));
+                values.append(", r.").append(quote(col.first));
+            }
+        }
+
+        session.execute(String.format(
+            "CREATE TEMP TABLE jeo_rows AS SELECT rowid AS jeo_fid, * FROM %s", quote(table)));
+        session.execute("DELETE FROM " + quote(table));
+        session.execute(String.format("INSERT INTO %s (%s%s) SELECT o.new_fid%s "
+            + "FROM jeo_rows r JOIN jeo_fid_order o ON r.jeo_fid = o.fid ORDER BY o.new_fid",
+            quote(table), key, cols, values));
+        session.execute("DROP TABLE jeo_rows");
+        session.execute("DROP TABLE jeo_fid_order");
+        session.execute("REINDEX " + quote(table));
+        session.executePrepared("UPDATE gpkg_contents "
+            + "SET last_change = strftime('%Y-%m-%dT%H:%M:%fZ', 'now') WHERE table_name = ?",
+            table);
+    }
+}
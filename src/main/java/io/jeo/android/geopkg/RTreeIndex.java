@@ -0,0 +1,417 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static io.jeo.android.SQLiteBackend.quote;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+import io.jeo.android.LazyGeometry;
+import io.jeo.android.QueryCache;
+import io.jeo.android.SQLiteBackend;
+import io.jeo.android.SQLiteBackend.SQLiteSession;
+import io.jeo.geopkg.Backend.Results;
+import io.jeo.geopkg.Backend.Session;
+import io.jeo.util.Pair;
+
+/**
+ * The GeoPackage rtree spatial index extension for a single feature table geometry column.
+ * <p>
+ * Bounding box queries issued through {@link #query(Session, Envelope, String...)} are answered
+ * with a join against the <tt>rtree_&lt;table>_&lt;column></tt> virtual table when it exists,
+ * falling back to the {@link BBoxIndex} side table, or a plain scan of the table otherwise.
+ * </p>
+ * <p>
+ * The standard insert and update triggers of the extension rely on the <tt>ST_*</tt> SQL
+ * functions which Android's SQLite does not provide. Instead an index built by {@link #create()}
+ * installs triggers that record the rowids of inserted and updated features in the side table
+ * <tt>jeo_rtree_&lt;table>_&lt;column></tt>, and {@link #refresh()} reads the bounds of those
+ * features from their geometry headers and writes them to the index. Queries never write, until
+ * the index is refreshed they return changed features regardless of their bounds. Writers are
+ * expected to call {@link #refresh()} once they commit, or leave it to a background maintenance
+ * task.
+ * </p>
+ */
+public class RTreeIndex {
+
+    /** extension name registered in gpkg_extensions */
+    public static final String EXTENSION = "gpkg_rtree_index";
+
+    /**
+     * The name of the rtree virtual table for a table and geometry column.
+     */
+    public static String name(String table, String column) {
+        return "rtree_" + table + "_" + column;
+    }
+
+    /**
+     * The name of the side table recording features changed since the index was last refreshed.
+     */
+    public static String dirty(String table, String column) {
+        return "jeo_rtree_" + table + "_" + column;
+    }
+
+    /**
+     * Creates the index object for the geometry column of a table, as declared in
+     * gpkg_geometry_columns.
+     */
+    public static RTreeIndex of(SQLiteBackend backend, String table) throws IOException {
+        Session session = backend.session();
+        try {
+            Results rs = session.queryPrepared(
+                "SELECT column_name FROM gpkg_geometry_columns WHERE table_name = ?", table);
+            try {
+                if (!rs.next()) {
+                    throw new IOException("No geometry column for table: " + table);
+                }
+                return new RTreeIndex(backend, table, rs.getString(0));
+            } finally {
+                rs.close();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    final SQLiteBackend backend;
+    final String table;
+    final String column;
+    final String rtree;
+    final String dirty;
+
+    public RTreeIndex(SQLiteBackend backend, String table, String column) {
+        this.backend = backend;
+        this.table = table;
+        this.column = column;
+        this.rtree = name(table, column);
+        this.dirty = dirty(table, column);
+    }
+
+    /**
+     * The name of the rtree virtual table.
+     */
+    public String name() {
+        return rtree;
+    }
+
+    /**
+     * Determines if the rtree virtual table exists.
+     */
+    public boolean exists() throws IOException {
+        return backend.hasTable(rtree);
+    }
+
+    /**
+     * Determines if changes to the feature table are tracked for the index.
+     */
+    public boolean isTracked() throws IOException {
+        return backend.hasTable(dirty);
+    }
+
+    /**
+     * Creates and populates the index if it does not already exist, registering the extension.
+     * <p>
+     * When the index exists but was created without change tracking, for instance by another
+     * tool, the tracking triggers are installed and the index rebuilt.
+     * </p>
+     * @return True if the index was created, false if it already existed.
+     */
+    public boolean create() throws IOException {
+        if (exists()) {
+            if (!isTracked()) {
+                Session session = backend.session();
+                try {
+                    session.beginTransaction();
+                    boolean complete = false;
+                    try {
+                        track(session);
+                        session.execute("DELETE FROM " + quote(rtree));
+                        load(session);
+                        complete = true;
+                    } finally {
+                        session.endTransaction(complete);
+                    }
+                } finally {
+                    session.close();
+                }
+            }
+            return false;
+        }
+
+        Session session = backend.session();
+        try {
+            session.beginTransaction();
+            boolean complete = false;
+            try {
+                session.execute(String.format(
+                    "CREATE VIRTUAL TABLE %s USING rtree(id, minx, maxx, miny, maxy)", quote(rtree)));
+                track(session);
+                session.execute("CREATE TABLE IF NOT EXISTS gpkg_extensions ("
+                    + "table_name TEXT, column_name TEXT, extension_name TEXT NOT NULL, "
+                    + "definition TEXT NOT NULL, scope TEXT NOT NULL, "
+                    + "CONSTRAINT ge_tce UNIQUE (table_name, column_name, extension_name))");
+                session.executePrepared("INSERT OR IGNORE INTO gpkg_extensions "
+                    + "(table_name, column_name, extension_name, definition, scope) "
+                    + "VALUES (?, ?, ?, ?, ?)", table, column, EXTENSION,
+                    "GeoPackage 1.0 Specification Annex L", "write-only");
+                load(session);
+                complete = true;
+            } finally {
+                session.endTransaction(complete);
+            }
+        } finally {
+            session.close();
+        }
+        return true;
+    }
+
+    /**
+     * Creates the side table recording changed features and the triggers maintaining it.
+     */
+    void track(Session session) throws IOException {
+        String t = quote(table), r = quote(rtree), d = quote(dirty);
+        session.execute(String.format("CREATE TABLE %s (fid INTEGER PRIMARY KEY)", d));
+        session.execute(String.format("CREATE TRIGGER IF NOT EXISTS %s AFTER DELETE ON %s "
+            + "BEGIN DELETE FROM %s WHERE id = OLD.rowid; "
+            + "DELETE FROM %s WHERE fid = OLD.rowid; END",
+            quote(rtree + "_delete"), t, r, d));
+        session.execute(String.format("CREATE TRIGGER %s AFTER INSERT ON %s "
+            + "BEGIN INSERT OR REPLACE INTO %s (fid) VALUES (NEW.rowid); END",
+            quote(dirty + "_insert"), t, d));
+        session.execute(String.format("CREATE TRIGGER %s AFTER UPDATE OF %s ON %s "
+            + "BEGIN INSERT OR REPLACE INTO %s (fid) VALUES (NEW.rowid); END",
+            quote(dirty + "_update"), quote(column), t, d));
+        session.execute(String.format("CREATE TRIGGER %s AFTER UPDATE ON %s "
+            + "WHEN OLD.rowid <> NEW.rowid BEGIN DELETE FROM %s WHERE id = OLD.rowid; "
+            + "DELETE FROM %s WHERE fid = OLD.rowid; "
+            + "INSERT OR REPLACE INTO %4$s (fid) VALUES (NEW.rowid); END",
+            quote(dirty + "_fid"), t, r, d));
+    }
+
+    /**
+     * Writes the bounds of features inserted or updated since the index was last refreshed,
+     * reading them from the geometry headers.
+     * <p>
+     * Changed features are processed in chunks of {@link SQLiteBackend#getBatchSize()}, each
+     * committed in its own transaction. Queries do not refresh the index, this is called from the
+     * write path after committing changes or from a background maintenance task.
+     * </p>
+     * @return The number of features refreshed.
+     */
+    public int refresh() throws IOException {
+        if (!isTracked()) {
+            return 0;
+        }
+
+        String sql = String.format("SELECT d.fid, t.%s FROM %s d LEFT JOIN %s t ON t.rowid = d.fid "
+            + "LIMIT %d", quote(column), quote(dirty), quote(table), backend.getBatchSize());
+        int total = 0;
+
+        Session session = backend.session();
+        try {
+            List<Long> fids = new ArrayList<Long>();
+            List<Envelope> bounds = new ArrayList<Envelope>();
+            do {
+                fids.clear();
+                bounds.clear();
+                Results rs = session.queryPrepared(sql);
+                try {
+                    while (rs.next()) {
+                        byte[] blob = rs.getBytes(1);
+                        fids.add(rs.getLong(0));
+                        bounds.add(blob != null ? new LazyGeometry(blob).envelope() : null);
+                    }
+                } finally {
+                    rs.close();
+                }
+                if (fids.isEmpty()) {
+                    break;
+                }
+
+                session.beginTransaction();
+                boolean complete = false;
+                try {
+                    for (int i = 0; i < fids.size(); i++) {
+                        long fid = fids.get(i);
+                        Envelope e = bounds.get(i);
+                        session.executePrepared(
+                            "DELETE FROM " + quote(rtree) + " WHERE id = ?", fid);
+                        if (e != null && !e.isNull()) {
+                            insert(session, fid, e);
+                        }
+                        session.executePrepared(
+                            "DELETE FROM " + quote(dirty) + " WHERE fid = ?", fid);
+                    }
+                    complete = true;
+                } finally {
+                    session.endTransaction(complete);
+                }
+                total += fids.size();
+            } while (fids.size() == backend.getBatchSize());
+        } finally {
+            session.close();
+        }
+        return total;
+    }
+
+    /**
+     * Clears and repopulates the index from the feature table.
+     */
+    public void rebuild() throws IOException {
+        Session session = backend.session();
+        try {
+            session.beginTransaction();
+            boolean complete = false;
+            try {
+                session.execute("DELETE FROM " + quote(rtree));
+                if (isTracked()) {
+                    session.execute("DELETE FROM " + quote(dirty));
+                }
+                load(session);
+                complete = true;
+            } finally {
+                session.endTransaction(complete);
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Updates the index entry for a single feature.
+     *
+     * @param fid The feature id (rowid).
+     * @param g The new feature geometry, <code>null</code> to remove the entry.
+     */
+    public void update(long fid, Geometry g) throws IOException {
+        Session session = backend.session();
+        try {
+            session.executePrepared("DELETE FROM " + quote(rtree) + " WHERE id = ?", fid);
+            if (g != null && !g.isEmpty()) {
+                insert(session, fid, g.getEnvelopeInternal());
+            }
+            if (isTracked()) {
+                session.executePrepared("DELETE FROM " + quote(dirty) + " WHERE fid = ?", fid);
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Queries the feature table for features whose bounds intersect a bounding box.
+     * <p>
+     * The query only reads, features changed since the index was last refreshed are returned
+     * whatever their bounds. When the index does not exist the {@link BBoxIndex} of the table is
+     * used instead if there is one, otherwise all rows are returned and filtering is left to the
+     * caller. When the backend's query cache is enabled the results are cached, and the query is
+     * run against the quantized bounding box of the cache key so rows outside of the specified
+     * box may be returned.
+     * </p>
+     * @param session The session to query with.
+     * @param bbox The bounding box.
+     * @param columns The columns to select, all columns if none are specified.
+     */
+    public Results query(Session session, Envelope bbox, String... columns) throws IOException {
+        QueryCache.Key key = null;
+        if (backend.getQueryCache() != null && session instanceof SQLiteSession) {
+            key = new QueryCache.Key(table, bbox, null, Arrays.asList(columns));
+            bbox = key.bbox();
+        }
+
+        StringBuilder sql = select(columns);
+
+        Object[] args = {};
+        if (exists()) {
+            sql.append(" JOIN ").append(quote(rtree)).append(" r ON t.rowid = r.id")
+               .append(" WHERE r.minx <= ? AND r.maxx >= ? AND r.miny <= ? AND r.maxy >= ?");
+            if (isTracked()) {
+                // entries of changed features may be stale, return them from the side table
+                sql.append(" AND r.id NOT IN (SELECT fid FROM ").append(quote(dirty)).append(")")
+                   .append(" UNION ALL ").append(select(columns)).append(" JOIN ")
+                   .append(quote(dirty)).append(" d ON t.rowid = d.fid");
+            }
+            args = new Object[]{bbox.getMaxX(), bbox.getMinX(), bbox.getMaxY(), bbox.getMinY()};
+        } else {
+            BBoxIndex shadow = new BBoxIndex(backend, table, column);
+            if (shadow.exists()) {
+                sql = new StringBuilder(shadow.sql(columns));
+                args = shadow.args(bbox);
+            }
+        }
+
+        return key != null ? ((SQLiteSession) session).queryCached(key, sql.toString(), args)
+            : session.queryPrepared(sql.toString(), args);
+    }
+
+    /**
+     * Queries the feature table for features whose bounds intersect a bounding box, selecting only
+     * the geometry column followed by the specified attributes.
+     * <p>
+     * Attributes that are not columns of the table are ignored, so the attributes referenced by a
+     * style (see {@link io.jeo.android.graphics.RuleAttributes}) can be passed as is.
+     * </p>
+     */
+    public Results query(Session session, Envelope bbox, Collection<String> attributes)
+        throws IOException {
+        List<String> columns = new ArrayList<String>();
+        columns.add(column);
+        for (Pair<String, Class> col : backend.getColumnInfo(table)) {
+            if (attributes.contains(col.first) && !column.equals(col.first)) {
+                columns.add(col.first);
+            }
+        }
+        return query(session, bbox, columns.toArray(new String[columns.size()]));
+    }
+
+    StringBuilder select(String... columns) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns.length == 0) {
+            sql.append("t.*");
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append("t.").append(quote(columns[i]));
+            }
+        }
+        return sql.append(" FROM ").append(quote(table)).append(" t");
+    }
+
+    void load(Session session) throws IOException {
+        Results rs = session.queryPrepared(String.format("SELECT rowid, %s FROM %s WHERE %1$s NOT NULL",
+            quote(column), quote(table)));
+        try {
+            while (rs.next()) {
+                Envelope e = new LazyGeometry(rs.getBytes(1)).envelope();
+                if (!e.isNull()) {
+                    insert(session, rs.getLong(0), e);
+                }
+            }
+        } finally {
+            rs.close();
+        }
+    }
+
+    void insert(Session session, long fid, Envelope e) throws IOException {
+        session.executePrepared("INSERT INTO " + quote(rtree) + " VALUES (?, ?, ?, ?, ?)",
+            fid, e.getMinX(), e.getMaxX(), e.getMinY(), e.getMaxY());
+    }
+}
@@ -19,6 +19,7 @@ import android.graphics.Rect;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import io.jeo.android.mbtiles.SQLiteMBTileSet;
 import io.jeo.tile.TileDataset;
 import io.jeo.vector.Feature;
 import io.jeo.geom.CoordinatePath;
@@ -66,6 +67,12 @@ public class AndroidRenderer extends BaseRenderer {
     /** underlying bitmap */
     Bitmap bitmap;
 
+    /** decoded tile bitmaps, <code>null</code> to decode tiles on every render */
+    TileBitmapCache tileCache = TileBitmapCache.shared();
+
+    /** loads tiles around the view in the background, may be <code>null</code> */
+    TilePrefetcher prefetcher;
+
     public AndroidRenderer(Canvas canvas) {
         this(canvas, null);
     }
@@ -79,6 +86,31 @@ public class AndroidRenderer extends BaseRenderer {
         return tx;
     }
 
+    public TileBitmapCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Sets the cache of decoded tile bitmaps, defaults to {@link TileBitmapCache#shared()}.
+     *
+     * @param tileCache The cache, <code>null</code> to decode tiles on every render.
+     */
+    public void setTileCache(TileBitmapCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    public TilePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * Sets the prefetcher notified of the tiles covering the view each time a tile layer is
+     * rendered.
+     */
+    public void setPrefetcher(TilePrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
     @Override
     protected boolean canRenderVectors() {
         return true;
@@ -118,7 +150,14 @@ public class AndroidRenderer extends BaseRenderer {
             TilePyramid pyr = data.pyramid();
 
             TileCover cov = pyr.cover(view.getBounds(), view.getWidth(), view.getHeight());
-            cov.fill(data);
+
+            // read all tiles with a single query when possible
+            Tile[][] tiles = null;
+            if (data instanceof SQLiteMBTileSet) {
+                tiles = ((SQLiteMBTileSet) data).read(cov);
+            } else {
+                cov.fill(data);
+            }
 
             Rect dst = new Rect();
 
@@ -132,7 +171,7 @@ public class AndroidRenderer extends BaseRenderer {
                 dst.bottom = canvas.getHeight();
 
                 for (int y = 0; y < cov.height(); y++) {
-                    Tile t = cov.tile(x, y);
+                    Tile t = tiles != null ? tiles[x][y] : cov.tile(x, y);
 
                     // clip source rectangle
                     Rect src = clipTile(t, pyr);
@@ -140,9 +179,18 @@ public class AndroidRenderer extends BaseRenderer {
                     dst.right = dst.left + (int) (src.width() * scx);
                     dst.top = dst.bottom - (int) (src.height() * scy);
 
-                    // load the bitmap
-                    Bitmap img = bitmap(t);
-                    canvas.drawBitmap(img, src, dst, p);
+                    // load the bitmap, a software canvas copies the pixels as they are drawn so
+                    // the bitmap can be released right after, a hardware one may hold on to it
+                    boolean pin = tileCache != null && !canvas.isHardwareAccelerated();
+                    Bitmap img = pin ? tileCache.acquire(data, t)
+                        : tileCache != null ? tileCache.bitmap(data, t) : bitmap(t);
+                    try {
+                        canvas.drawBitmap(img, src, dst, p);
+                    } finally {
+                        if (pin) {
+                            tileCache.release(img);
+                        }
+                    }
 
                     dst.bottom = dst.top;
                     //img.recycle();
@@ -150,6 +198,10 @@ public class AndroidRenderer extends BaseRenderer {
 
                 dst.left = dst.right;
             }
+
+            if (prefetcher != null) {
+                prefetcher.prefetch(data, pyr, cov);
+            }
         }
         catch(IOException e) {
             LOG.error("Error querying layer " + data.name(), e);
@@ -0,0 +1,201 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.graphics;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Pool of recycled bitmaps that images are decoded into, rather than allocating a new bitmap for
+ * every decode.
+ * <p>
+ * Bitmaps are pooled by size and configuration, and handed out oldest first so that a bitmap
+ * returned to the pool is reused as late as possible. The bitmaps held by the pool are bounded by
+ * a memory budget, bitmaps returned once the pool is full are dropped and left to the garbage
+ * collector. On the Android versions supported a bitmap can only be decoded into a bitmap of
+ * exactly the same size.
+ * </p>
+ * <p>
+ * A bitmap must only be returned to the pool once nothing references it anymore, since the pool
+ * hands it out again to be decoded into.
+ * </p>
+ */
+public class BitmapPool {
+
+    /** size of tiles when the tile has no data */
+    static final int EMPTY_SIZE = 256;
+
+    /** fraction of the maximum heap used by the shared pool */
+    static final int SHARED_FRACTION = 16;
+
+    static BitmapPool shared;
+
+    static Bitmap empty;
+
+    /**
+     * The pool shared by renderers, sized to a sixteenth of the maximum heap.
+     */
+    public static synchronized BitmapPool shared() {
+        if (shared == null) {
+            shared = new BitmapPool((int) (Runtime.getRuntime().maxMemory() / SHARED_FRACTION));
+        }
+        return shared;
+    }
+
+    /**
+     * A single immutable, fully transparent 256x256 bitmap drawn for tiles without data.
+     */
+    public static synchronized Bitmap empty() {
+        if (empty == null) {
+            empty = Bitmap.createBitmap(new int[EMPTY_SIZE * EMPTY_SIZE], EMPTY_SIZE, EMPTY_SIZE,
+                Bitmap.Config.ARGB_8888);
+        }
+        return empty;
+    }
+
+    /** idle bitmaps by size and configuration, oldest first */
+    final Map<String, Deque<Bitmap>> idle = new HashMap<String, Deque<Bitmap>>();
+
+    /** maximum and current number of bytes held by idle bitmaps */
+    final int maxBytes;
+    int bytes;
+
+    /** number of decodes that reused a pooled bitmap, and that allocated one */
+    int hits, misses;
+
+    /**
+     * Creates the pool.
+     *
+     * @param maxBytes The maximum number of bytes held by bitmaps in the pool.
+     */
+    public BitmapPool(int maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static String key(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    /**
+     * Takes a bitmap of the specified size and configuration from the pool.
+     *
+     * @return The bitmap, or <code>null</code> if the pool holds none.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Deque<Bitmap> q = idle.get(key(width, height, config));
+        Bitmap bitmap = q != null ? q.poll() : null;
+        if (bitmap != null) {
+            bytes -= bitmap.getByteCount();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap to the pool once nothing references it anymore.
+     * <p>
+     * Immutable and recycled bitmaps are ignored, as is the bitmap if the pool is full.
+     * </p>
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        if (bytes + bitmap.getByteCount() > maxBytes) {
+            return;
+        }
+
+        String key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        Deque<Bitmap> q = idle.get(key);
+        if (q == null) {
+            q = new ArrayDeque<Bitmap>();
+            idle.put(key, q);
+        }
+        q.add(bitmap);
+        bytes += bitmap.getByteCount();
+    }
+
+    /**
+     * Decodes an image, into a pooled bitmap of the same size if there is one.
+     */
+    public Bitmap decode(byte[] data) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+
+        opts.inJustDecodeBounds = false;
+        opts.inMutable = true;
+        opts.inSampleSize = 1;
+        opts.inBitmap = opts.outWidth > 0
+            ? get(opts.outWidth, opts.outHeight, Bitmap.Config.ARGB_8888) : null;
+
+        synchronized (this) {
+            if (opts.inBitmap != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+
+        if (opts.inBitmap != null) {
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+            } catch (IllegalArgumentException e) {
+                // image can not be decoded into the pooled bitmap, eg. a palette image
+                put(opts.inBitmap);
+                opts.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+    }
+
+    /**
+     * Number of decodes that reused a pooled bitmap.
+     */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /**
+     * Number of decodes that allocated a new bitmap.
+     */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    /**
+     * Number of bytes held by bitmaps in the pool.
+     */
+    public synchronized int size() {
+        return bytes;
+    }
+
+    /**
+     * Recycles all bitmaps in the pool.
+     */
+    public synchronized void clear() {
+        for (Deque<Bitmap> q : idle.values()) {
+            for (Bitmap bitmap : q) {
+                bitmap.recycle();
+            }
+        }
+        idle.clear();
+        bytes = 0;
+    }
+}
@@ -441,10 +441,22 @@ public class Graphics {
     }
 
     public static Bitmap bitmap(Tile t) {
+        return bitmap(t, BitmapPool.shared());
+    }
+
+    /**
+     * Decodes the image of a tile into a bitmap taken from a pool.
+     * <p>
+     * Tiles without data all share the immutable {@link BitmapPool#empty()} bitmap.
+     * </p>
+     * @param pool The pool to decode into, may be <code>null</code> to allocate a new bitmap.
+     */
+    public static Bitmap bitmap(Tile t, BitmapPool pool) {
         byte[] data = t.data();
         if (data == null) {
-            return Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+            return BitmapPool.empty();
         }
-        return BitmapFactory.decodeByteArray(data, 0, data.length);
+        return pool != null
+            ? pool.decode(data) : BitmapFactory.decodeByteArray(data, 0, data.length);
     }
 }
@@ -0,0 +1,74 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.graphics;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import io.jeo.filter.Expression;
+import io.jeo.filter.Filter;
+import io.jeo.filter.FilterWalker;
+import io.jeo.filter.Property;
+import io.jeo.map.Rule;
+import io.jeo.map.RuleList;
+import io.jeo.map.Selector;
+
+/**
+ * Collects the feature attributes referenced by a set of rules.
+ * <p>
+ * The resulting set is the projection a query needs to evaluate the rules' selector filters and
+ * symbolizer properties, for instance the column list passed to
+ * {@link io.jeo.android.geopkg.RTreeIndex#query(io.jeo.geopkg.Backend.Session,
+ * com.vividsolutions.jts.geom.Envelope, String...)}. The geometry and key columns are not included.
+ * </p>
+ */
+public class RuleAttributes extends FilterWalker<Object> {
+
+    /**
+     * Returns the names of the attributes referenced by the rules, in order of first reference.
+     */
+    public static Set<String> collect(RuleList rules) {
+        RuleAttributes walker = new RuleAttributes();
+        for (Rule rule : rules) {
+            walker.rule(rule);
+        }
+        return walker.attributes;
+    }
+
+    final Set<String> attributes = new LinkedHashSet<String>();
+
+    void rule(Rule rule) {
+        for (Selector sel : rule.getSelectors()) {
+            Filter filter = sel.getFilter();
+            if (filter != null) {
+                filter.accept(this, null);
+            }
+        }
+        for (Object value : rule.properties().values()) {
+            if (value instanceof Expression) {
+                ((Expression) value).accept(this, null);
+            }
+        }
+        for (Rule nested : rule.nested()) {
+            rule(nested);
+        }
+    }
+
+    @Override
+    public Object visit(Property property, Object obj) {
+        attributes.add(property.property());
+        return obj;
+    }
+}
@@ -0,0 +1,357 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.graphics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import io.jeo.android.mbtiles.SQLiteMBTileSet;
+import io.jeo.tile.Tile;
+import io.jeo.tile.TileDataset;
+
+/**
+ * LRU cache of decoded tile bitmaps, bounded by the number of bytes held by the bitmaps.
+ * <p>
+ * Bitmaps are keyed by the identity of the tile dataset and the zoom level, column and row of the
+ * tile, so that a tile drawn in consecutive frames is only decoded once. Since the cache is shared
+ * by all renderers of the process a dataset is identified by its file rather than its name, see
+ * {@link Key#id(TileDataset)}. Tiles are decoded into
+ * bitmaps from a {@link BitmapPool}.
+ * </p>
+ * <p>
+ * An evicted bitmap is only returned to the pool when it is known to be unreferenced, since the
+ * pool hands it out again to be decoded into. Bitmaps obtained with {@link #acquire(TileDataset,
+ * Tile)} are pinned until {@link #release(Bitmap)} is called and returned to the pool once both
+ * released and evicted. Bitmaps handed out by {@link #bitmap(TileDataset, Tile)} or
+ * {@link #get(Key)} may be held indefinitely, for instance by the display list of a hardware
+ * accelerated canvas, so are never returned to the pool.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * TileBitmapCache cache = TileBitmapCache.shared();
+ * Bitmap img = cache.acquire(dataset, tile);
+ * try {
+ *     canvas.drawBitmap(img, src, dst, paint);
+ * } finally {
+ *     cache.release(img);
+ * }
+ * </code></pre>
+ * </p>
+ */
+public class TileBitmapCache {
+
+    /** fraction of the maximum heap used by the shared cache */
+    static final int SHARED_FRACTION = 8;
+
+    static TileBitmapCache shared;
+
+    /**
+     * The cache shared by renderers, sized to an eighth of the maximum heap.
+     */
+    public static synchronized TileBitmapCache shared() {
+        if (shared == null) {
+            shared = new TileBitmapCache(
+                (int) (Runtime.getRuntime().maxMemory() / SHARED_FRACTION), BitmapPool.shared());
+        }
+        return shared;
+    }
+
+    /**
+     * Key of a cached bitmap.
+     */
+    public static class Key {
+
+        /**
+         * The identity of a dataset within the cache, the path of the file of an MBTiles tile set
+         * opened with {@link SQLiteMBTileSet}, otherwise the name of the dataset qualified by its
+         * identity hash code.
+         */
+        public static String id(TileDataset data) {
+            if (data instanceof SQLiteMBTileSet) {
+                return ((SQLiteMBTileSet) data).getFile().getPath();
+            }
+            return data.name() + "@" + Integer.toHexString(System.identityHashCode(data));
+        }
+
+        final String dataset;
+        final int z, x, y;
+
+        public Key(String dataset, int z, int x, int y) {
+            this.dataset = dataset;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        public Key(TileDataset data, int z, int x, int y) {
+            this(id(data), z, x, y);
+        }
+
+        public Key(TileDataset data, Tile t) {
+            this(data, t.z(), t.x(), t.y());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return z == other.z && x == other.x && y == other.y
+                && (dataset == null ? other.dataset == null : dataset.equals(other.dataset));
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[]{dataset, z, x, y});
+        }
+
+        @Override
+        public String toString() {
+            return dataset + "/" + z + "/" + x + "/" + y;
+        }
+    }
+
+    final LruCache<Key, Bitmap> cache;
+
+    /** pool tiles are decoded into and evicted bitmaps returned to, may be <code>null</code> */
+    final BitmapPool pool;
+
+    /** number of lookups that hit and missed */
+    int hits, misses;
+
+    /** number of holders of bitmaps obtained with acquire() and not yet released */
+    final Map<Bitmap, Integer> pins = new IdentityHashMap<Bitmap, Integer>();
+
+    /** pinned bitmaps no longer in the cache, pooled once released */
+    final Set<Bitmap> evicted = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    /** cached bitmaps handed out without a pin, never pooled */
+    final Set<Bitmap> escaped = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxBytes The maximum number of bytes held by cached bitmaps.
+     */
+    public TileBitmapCache(int maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * Creates the cache decoding tiles with a bitmap pool.
+     *
+     * @param maxBytes The maximum number of bytes held by cached bitmaps.
+     * @param pool The pool, may be <code>null</code>.
+     */
+    public TileBitmapCache(int maxBytes, BitmapPool pool) {
+        this.pool = pool;
+        cache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue,
+                Bitmap newValue) {
+                if (oldValue != newValue) {
+                    removed(oldValue);
+                }
+            }
+        };
+    }
+
+    synchronized void removed(Bitmap img) {
+        if (escaped.remove(img)) {
+            return;
+        }
+        if (pins.containsKey(img)) {
+            evicted.add(img);
+        } else if (pool != null) {
+            pool.put(img);
+        }
+    }
+
+    /**
+     * Returns the bitmap for a tile, decoding and caching it if not already cached.
+     * <p>
+     * The bitmap is never returned to the pool, see {@link #acquire(TileDataset, Tile)} for
+     * bitmaps that are.
+     * </p>
+     */
+    public Bitmap bitmap(TileDataset data, Tile t) {
+        return lookup(data, t, false);
+    }
+
+    /**
+     * Returns the bitmap for a tile, decoding and caching it if not already cached, pinned until
+     * {@link #release(Bitmap)} is called.
+     */
+    public Bitmap acquire(TileDataset data, Tile t) {
+        return lookup(data, t, true);
+    }
+
+    /**
+     * Releases a bitmap obtained from {@link #acquire(TileDataset, Tile)}, once it is no longer
+     * drawn.
+     */
+    public synchronized void release(Bitmap img) {
+        Integer n = pins.get(img);
+        if (n == null) {
+            return;
+        }
+        if (n > 1) {
+            pins.put(img, n - 1);
+            return;
+        }
+
+        pins.remove(img);
+        if (evicted.remove(img) && pool != null) {
+            pool.put(img);
+        }
+    }
+
+    Bitmap lookup(TileDataset data, Tile t, boolean pin) {
+        Key key = new Key(data, t);
+        synchronized (this) {
+            Bitmap img = cache.get(key);
+            if (img != null) {
+                hits++;
+                hold(img, pin);
+                return img;
+            }
+            misses++;
+        }
+
+        Bitmap img = Graphics.bitmap(t, pool);
+        if (img != null) {
+            synchronized (this) {
+                hold(img, pin);
+                cache.put(key, img);
+            }
+        }
+        return img;
+    }
+
+    void hold(Bitmap img, boolean pin) {
+        if (pin) {
+            Integer n = pins.get(img);
+            pins.put(img, n != null ? n + 1 : 1);
+        } else {
+            escaped.add(img);
+        }
+    }
+
+    /**
+     * Returns the cached bitmap for a tile, or <code>null</code> if it is not cached.
+     * <p>
+     * The bitmap is never returned to the pool.
+     * </p>
+     */
+    public synchronized Bitmap get(Key key) {
+        Bitmap img = cache.get(key);
+        if (img != null) {
+            escaped.add(img);
+        }
+        return img;
+    }
+
+    /**
+     * Determines if the bitmap for a tile is cached.
+     */
+    public boolean contains(Key key) {
+        return cache.get(key) != null;
+    }
+
+    /**
+     * Caches a decoded bitmap, that is not referenced elsewhere.
+     */
+    public void put(Key key, Bitmap img) {
+        cache.put(key, img);
+    }
+
+    /**
+     * Removes all bitmaps of a dataset.
+     */
+    public void evict(TileDataset data) {
+        evict(Key.id(data));
+    }
+
+    /**
+     * Removes all bitmaps of a dataset.
+     *
+     * @param dataset The identity of the dataset, see {@link Key#id(TileDataset)}.
+     */
+    public void evict(String dataset) {
+        for (Map.Entry<Key, Bitmap> e : cache.snapshot().entrySet()) {
+            if (dataset.equals(e.getKey().dataset)) {
+                cache.remove(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Removes all bitmaps.
+     */
+    public void clear() {
+        cache.evictAll();
+    }
+
+    /**
+     * Number of tiles looked up with {@link #bitmap(TileDataset, Tile)} or
+     * {@link #acquire(TileDataset, Tile)} that were cached.
+     */
+    public synchronized int hits() {
+        return hits;
+    }
+
+    /**
+     * Number of tiles looked up with {@link #bitmap(TileDataset, Tile)} or
+     * {@link #acquire(TileDataset, Tile)} that required decoding.
+     */
+    public synchronized int misses() {
+        return misses;
+    }
+
+    /**
+     * The fraction of lookups that found a cached bitmap, <tt>0</tt> if there were none.
+     */
+    public synchronized double hitRate() {
+        int hits = hits(), total = hits + misses();
+        return total > 0 ? hits / (double) total : 0;
+    }
+
+    /**
+     * Number of bytes held by cached bitmaps.
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Maximum number of bytes held by cached bitmaps.
+     */
+    public int maxSize() {
+        return cache.maxSize();
+    }
+}
@@ -0,0 +1,279 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.graphics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.jeo.tile.Tile;
+import io.jeo.tile.TileCover;
+import io.jeo.tile.TileDataset;
+import io.jeo.tile.TileGrid;
+import io.jeo.tile.TilePyramid;
+
+/**
+ * Loads and decodes the tiles around the current view into a {@link TileBitmapCache} on a pool of
+ * background threads.
+ * <p>
+ * Each time the view changes the tiles in a ring around the visible cover are fetched, followed by
+ * the tiles covering the view at the next and previous zoom levels. Ring tiles lying in the
+ * direction of the last pan are fetched first, as is the zoom level in the direction of the last
+ * zoom. Pending tiles no longer around the view are cancelled, without interrupting those already
+ * being fetched, and a view whose cover has not changed since the previous one fetches nothing.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * TilePrefetcher prefetcher = new TilePrefetcher(TileBitmapCache.shared(), 2);
+ * renderer.setPrefetcher(prefetcher);
+ * ...
+ * prefetcher.shutdown();
+ * </code></pre>
+ * </p>
+ */
+public class TilePrefetcher {
+
+    static Logger LOG = LoggerFactory.getLogger(TilePrefetcher.class);
+
+    /** default maximum number of tiles fetched per view */
+    public static final int DEFAULT_MAX_TILES = 64;
+
+    final TileBitmapCache cache;
+    final ExecutorService executor;
+
+    int maxTiles = DEFAULT_MAX_TILES;
+
+    /** tiles pending for the current view */
+    final Map<TileBitmapCache.Key, Future<?>> pending =
+        new HashMap<TileBitmapCache.Key, Future<?>>();
+
+    /** zoom level and center, in tiles, of the previous view */
+    int lastZ = -1;
+    double lastX, lastY;
+
+    /** dataset and cover bounds of the previous view */
+    TileDataset lastData;
+    int lastX0, lastX1, lastY0, lastY1;
+
+    /** direction of the last zoom, positive when zooming in */
+    int zoomDir = 1;
+
+    /**
+     * Creates the prefetcher.
+     *
+     * @param cache The cache to load tiles into.
+     * @param threads The number of background threads.
+     */
+    public TilePrefetcher(TileBitmapCache cache, int threads) {
+        this.cache = cache;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "tile-prefetch");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Sets the maximum number of tiles fetched for a single view.
+     */
+    public void setMaxTiles(int maxTiles) {
+        this.maxTiles = maxTiles;
+    }
+
+    /**
+     * Starts fetching the tiles around a new view, cancelling pending tiles of the previous view
+     * that are no longer needed.
+     *
+     * @param data The tile dataset.
+     * @param pyr The tile pyramid of the dataset.
+     * @param cov The cover of the visible tiles.
+     */
+    public synchronized void prefetch(TileDataset data, TilePyramid pyr, TileCover cov) {
+        int z = cov.grid().z();
+        if (data == lastData && z == lastZ && cov.x0() == lastX0 && cov.x1() == lastX1
+                && cov.y0() == lastY0 && cov.y1() == lastY1) {
+            return;
+        }
+        lastData = data;
+        lastX0 = cov.x0();
+        lastX1 = cov.x1();
+        lastY0 = cov.y0();
+        lastY1 = cov.y1();
+
+        double cx = (cov.x0() + cov.x1()) / 2d, cy = (cov.y0() + cov.y1()) / 2d;
+
+        // direction of the pan, in tiles
+        double dx = 0, dy = 0;
+        if (z == lastZ) {
+            dx = cx - lastX;
+            dy = cy - lastY;
+        } else if (lastZ >= 0) {
+            zoomDir = z > lastZ ? 1 : -1;
+        }
+        double len = Math.sqrt(dx * dx + dy * dy);
+        if (len > 0) {
+            dx /= len;
+            dy /= len;
+        }
+        lastZ = z;
+        lastX = cx;
+        lastY = cy;
+
+        List<double[]> tiles = new ArrayList<double[]>();
+
+        // ring around the cover, scored by alignment with the pan direction
+        for (int x = cov.x0() - 1; x <= cov.x1() + 1; x++) {
+            for (int y = cov.y0() - 1; y <= cov.y1() + 1; y++) {
+                if (x >= cov.x0() && x <= cov.x1() && y >= cov.y0() && y <= cov.y1()) {
+                    continue;
+                }
+                double ox = x - cx, oy = y - cy, ol = Math.sqrt(ox * ox + oy * oy);
+                double score = 1 + (ol > 0 ? (ox * dx + oy * dy) / ol : 0);
+                add(tiles, pyr, z, x, y, score);
+            }
+        }
+
+        // next and previous zoom levels, after the ring
+        for (int dz : new int[]{1, -1}) {
+            double score = dz == zoomDir ? -1 : -2;
+            int zz = z + dz;
+            if (dz > 0) {
+                for (int x = cov.x0() * 2; x <= cov.x1() * 2 + 1; x++) {
+                    for (int y = cov.y0() * 2; y <= cov.y1() * 2 + 1; y++) {
+                        add(tiles, pyr, zz, x, y, score);
+                    }
+                }
+            } else {
+                for (int x = cov.x0() / 2; x <= cov.x1() / 2; x++) {
+                    for (int y = cov.y0() / 2; y <= cov.y1() / 2; y++) {
+                        add(tiles, pyr, zz, x, y, score);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(tiles, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return Double.compare(b[3], a[3]);
+            }
+        });
+
+        Map<TileBitmapCache.Key, Fetch> fetches =
+            new LinkedHashMap<TileBitmapCache.Key, Fetch>();
+        for (int i = 0; i < tiles.size() && i < maxTiles; i++) {
+            double[] t = tiles.get(i);
+            Fetch f = new Fetch(data, (int) t[0], (int) t[1], (int) t[2]);
+            fetches.put(f.key, f);
+        }
+
+        // keep fetches still needed, only cancelling those not yet started
+        for (Iterator<Map.Entry<TileBitmapCache.Key, Future<?>>> it =
+                pending.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<TileBitmapCache.Key, Future<?>> e = it.next();
+            if (e.getValue().isDone()) {
+                it.remove();
+            } else if (!fetches.containsKey(e.getKey())) {
+                e.getValue().cancel(false);
+                it.remove();
+            }
+        }
+
+        for (Fetch f : fetches.values()) {
+            if (!pending.containsKey(f.key)) {
+                pending.put(f.key, executor.submit(f));
+            }
+        }
+    }
+
+    void add(List<double[]> tiles, TilePyramid pyr, int z, int x, int y, double score) {
+        TileGrid grid = z >= 0 ? pyr.grid(z) : null;
+        if (grid != null && x >= 0 && y >= 0 && x < grid.width() && y < grid.height()) {
+            tiles.add(new double[]{z, x, y, score});
+        }
+    }
+
+    /**
+     * Cancels all pending tiles not yet being fetched.
+     */
+    public synchronized void cancel() {
+        for (Future<?> f : pending.values()) {
+            f.cancel(false);
+        }
+        pending.clear();
+        lastData = null;
+    }
+
+    /**
+     * Cancels all pending tiles and stops the background threads, interrupting tiles being
+     * fetched.
+     */
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    class Fetch implements Runnable {
+        final TileDataset data;
+        final int z, x, y;
+        final TileBitmapCache.Key key;
+
+        Fetch(TileDataset data, int z, int x, int y) {
+            this.data = data;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.key = new TileBitmapCache.Key(data, z, x, y);
+        }
+
+        @Override
+        public void run() {
+            if (Thread.currentThread().isInterrupted() || cache.contains(key)) {
+                return;
+            }
+            try {
+                Tile t = data.read(z, x, y);
+                if (t != null && !Thread.currentThread().isInterrupted()) {
+                    // decoded directly, so as not to count as a cache lookup
+                    Bitmap img = Graphics.bitmap(t, cache.pool);
+                    if (img != null) {
+                        cache.put(key, img);
+                    }
+                }
+            } catch (Exception e) {
+                LOG.debug("Error prefetching tile " + z + "/" + x + "/" + y, e);
+            }
+        }
+    }
+}
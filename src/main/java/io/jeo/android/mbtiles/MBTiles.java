@@ -24,20 +24,30 @@ import java.util.Map;
 import java.util.Set;
 
 import io.jeo.android.SQLiteBackend;
+import io.jeo.android.StorageProfile;
 import io.jeo.mbtiles.MBTileSet;
 import io.jeo.data.FileDriver;
 import io.jeo.mbtiles.MBTilesOpts;
 
 /**
  * Driver for the MBTiles format, that utilizes Android SQLite capabilities.
- * 
+ * <p>
+ * Tile sets are opened with the {@link StorageProfile#READ_HEAVY} profile, so tiles are read
+ * through memory mapped I/O where the device supports it. The tile sets returned are
+ * {@link SQLiteMBTileSet}s, which can read a whole tile cover with a single query.
+ * </p>
+ * <p>
+ * The driver does not write tile sets, files are seeded on the device with an
+ * {@link MBTilesWriter}.
+ * </p>
  * @author Justin Deoliveira, OpenGeo
  */
 public class MBTiles extends FileDriver<MBTileSet> {
 
     public static MBTileSet open(Path path){
         File file = path.toFile();
-        return new MBTileSet(new SQLiteBackend(file), new MBTilesOpts(file));
+        return new SQLiteMBTileSet(
+            new SQLiteBackend(file, StorageProfile.READ_HEAVY), new MBTilesOpts(file));
     }
 
     @Override
@@ -57,7 +67,8 @@ public class MBTiles extends FileDriver<MBTileSet> {
 
     @Override
     public MBTileSet open(File file, Map<?, Object> opts) throws IOException {
-        return new MBTileSet(new SQLiteBackend(file), new MBTilesOpts(file));
+        return new SQLiteMBTileSet(
+            new SQLiteBackend(file, StorageProfile.READ_HEAVY), new MBTilesOpts(file));
     }
 
     @Override
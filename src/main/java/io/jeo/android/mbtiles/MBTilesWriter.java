@@ -0,0 +1,196 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.mbtiles;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import io.jeo.android.SQLiteBackend;
+import io.jeo.android.SQLiteBackend.SQLiteResults;
+import io.jeo.android.SQLiteBackend.SQLiteSession;
+
+/**
+ * Writes tiles to an MBTiles file in bulk, storing identical tile images only once.
+ * <p>
+ * Tiles are written to the normalized form of the MBTiles schema, where the <tt>map</tt> table
+ * references images in the <tt>images</tt> table by id and <tt>tiles</tt> is a view joining the
+ * two. The id of an image is the SHA-1 hash of its content, so that blank or ocean tiles repeated
+ * across a tile set share a single image. Writes are committed in transactions of
+ * {@link SQLiteBackend#getBatchSize()} tiles.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre><code>
+ * MBTilesWriter w = new MBTilesWriter(new SQLiteBackend(new File("pack.mbtiles")));
+ * try {
+ *     w.metadata("format", "png");
+ *     w.write(z, x, y, png);
+ *     ...
+ * } finally {
+ *     w.close();
+ * }
+ * </code></pre>
+ * </p>
+ */
+public class MBTilesWriter implements Closeable {
+
+    final SQLiteBackend backend;
+    final SQLiteSession session;
+    final MessageDigest digest;
+
+    /** number of tiles written, and written with an image already stored */
+    long count, duplicates;
+
+    /** number of tiles written in the current transaction */
+    int pending;
+
+    /**
+     * Creates the writer, creating the normalized schema if the file has no tiles yet.
+     *
+     * @throws IOException If the file already has a <tt>tiles</tt> table rather than view.
+     */
+    public MBTilesWriter(SQLiteBackend backend) throws IOException {
+        this.backend = backend;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        this.session = backend.session();
+        try {
+            init();
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+    }
+
+    void init() throws IOException {
+        SQLiteResults rs = session.queryPrepared(
+            "SELECT type FROM sqlite_master WHERE name = ?", "tiles");
+        try {
+            if (rs.next() && "table".equals(rs.getString(0))) {
+                throw new IOException("tiles is a table, only the normalized schema is supported");
+            }
+        } finally {
+            rs.close();
+        }
+
+        session.execute("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+        session.execute("CREATE UNIQUE INDEX IF NOT EXISTS metadata_name ON metadata (name)");
+        session.execute(
+            "CREATE TABLE IF NOT EXISTS images (tile_id TEXT PRIMARY KEY, tile_data BLOB)");
+        session.execute("CREATE TABLE IF NOT EXISTS map (zoom_level INTEGER, tile_column INTEGER, "
+            + "tile_row INTEGER, tile_id TEXT)");
+        session.execute("CREATE UNIQUE INDEX IF NOT EXISTS map_index "
+            + "ON map (zoom_level, tile_column, tile_row)");
+        session.execute("CREATE VIEW IF NOT EXISTS tiles AS SELECT map.zoom_level AS zoom_level, "
+            + "map.tile_column AS tile_column, map.tile_row AS tile_row, "
+            + "images.tile_data AS tile_data FROM map JOIN images ON images.tile_id = map.tile_id");
+    }
+
+    /**
+     * Sets a metadata value, replacing any existing value.
+     */
+    public void metadata(String name, String value) throws IOException {
+        session.executePrepared(
+            "INSERT OR REPLACE INTO metadata (name, value) VALUES (?, ?)", name, value);
+    }
+
+    /**
+     * Writes a tile, replacing any existing tile at the same position.
+     *
+     * @param z The zoom level.
+     * @param x The tile column.
+     * @param y The tile row, counted from the bottom as per the MBTiles specification.
+     * @param data The tile image.
+     */
+    public void write(int z, int x, int y, byte[] data) throws IOException {
+        if (pending == 0) {
+            session.beginTransaction();
+        }
+
+        String id = hash(data);
+        if (session.executeUpdate(
+                "INSERT OR IGNORE INTO images (tile_id, tile_data) VALUES (?, ?)", id, data) == 0) {
+            duplicates++;
+        }
+        session.executePrepared("INSERT OR REPLACE INTO map "
+            + "(zoom_level, tile_column, tile_row, tile_id) VALUES (?, ?, ?, ?)", z, x, y, id);
+        count++;
+
+        if (++pending >= backend.getBatchSize()) {
+            commit();
+        }
+    }
+
+    /**
+     * Commits the tiles written so far.
+     */
+    public void commit() throws IOException {
+        if (pending > 0) {
+            pending = 0;
+            session.endTransaction(true);
+        }
+    }
+
+    /**
+     * Removes images no longer referenced by any tile, after tiles have been replaced.
+     */
+    public void prune() throws IOException {
+        commit();
+        session.execute(
+            "DELETE FROM images WHERE tile_id NOT IN (SELECT DISTINCT tile_id FROM map)");
+    }
+
+    /**
+     * Number of tiles written.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Number of tiles written whose image was already stored in the file.
+     */
+    public long duplicates() {
+        return duplicates;
+    }
+
+    String hash(byte[] data) {
+        byte[] h = digest.digest(data);
+        StringBuilder sb = new StringBuilder(h.length * 2);
+        for (byte b : h) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+              .append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Commits any pending tiles and closes the writer, the backend is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            session.close();
+        }
+    }
+}
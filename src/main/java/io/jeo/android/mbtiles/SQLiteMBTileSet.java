@@ -0,0 +1,123 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.mbtiles;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.jeo.android.SQLiteBackend;
+import io.jeo.android.SQLiteBackend.SQLiteResults;
+import io.jeo.android.SQLiteBackend.SQLiteSession;
+import io.jeo.mbtiles.MBTileSet;
+import io.jeo.mbtiles.MBTilesOpts;
+import io.jeo.tile.Tile;
+import io.jeo.tile.TileCover;
+
+/**
+ * MBTiles tile set over a {@link SQLiteBackend} that can read a whole rectangle of tiles with a
+ * single range query.
+ * <p>
+ * Filling a {@link TileCover} reads tiles one query at a time, {@link #read(TileCover)} instead
+ * reads all the tiles of the cover with one query and one pass over its cursor.
+ * </p>
+ */
+public class SQLiteMBTileSet extends MBTileSet {
+
+    final SQLiteBackend backend;
+
+    /** mime type of tile images, read from the metadata on first use */
+    String mimeType;
+
+    public SQLiteMBTileSet(SQLiteBackend backend, MBTilesOpts opts) {
+        super(backend, opts);
+        this.backend = backend;
+    }
+
+    /**
+     * The MBTiles file.
+     */
+    public File getFile() {
+        return backend.getFile();
+    }
+
+    /**
+     * Reads the tiles of a cover.
+     *
+     * @return The tiles indexed by column and row relative to the origin of the cover, as returned
+     *   by {@link TileCover#tile(int, int)}.
+     */
+    public Tile[][] read(TileCover cov) throws IOException {
+        return read(cov.grid().z(), cov.x0(), cov.x1(), cov.y0(), cov.y1());
+    }
+
+    /**
+     * Reads a rectangle of tiles of a zoom level.
+     * <p>
+     * Tiles missing from the tile set are returned as tiles without data.
+     * </p>
+     * @return The tiles indexed by column and row relative to <tt>x0</tt> and <tt>y0</tt>.
+     */
+    public Tile[][] read(int z, int x0, int x1, int y0, int y1) throws IOException {
+        Tile[][] tiles = new Tile[x1 - x0 + 1][y1 - y0 + 1];
+        String mimeType = mimeType();
+
+        SQLiteSession session = backend.readSession();
+        try {
+            SQLiteResults rs = session.queryPrepared("SELECT zoom_level, tile_column, tile_row, "
+                + "tile_data FROM tiles WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? "
+                + "AND tile_row BETWEEN ? AND ?", z, x0, x1, y0, y1);
+            try {
+                while (rs.next()) {
+                    int x = rs.getInt(1), y = rs.getInt(2);
+                    tiles[x - x0][y - y0] = new Tile(z, x, y, rs.getBytes(3), mimeType);
+                }
+            } finally {
+                rs.close();
+            }
+        } finally {
+            session.close();
+        }
+
+        for (int x = 0; x < tiles.length; x++) {
+            for (int y = 0; y < tiles[x].length; y++) {
+                if (tiles[x][y] == null) {
+                    tiles[x][y] = new Tile(z, x0 + x, y0 + y, null, mimeType);
+                }
+            }
+        }
+        return tiles;
+    }
+
+    synchronized String mimeType() throws IOException {
+        if (mimeType == null) {
+            String format = null;
+            SQLiteSession session = backend.readSession();
+            try {
+                SQLiteResults rs = session.queryPrepared(
+                    "SELECT value FROM metadata WHERE name = ?", "format");
+                try {
+                    format = rs.next() ? rs.getString(0) : null;
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                session.close();
+            }
+            mimeType = "jpg".equalsIgnoreCase(format) || "jpeg".equalsIgnoreCase(format)
+                ? "image/jpeg" : "image/png";
+        }
+        return mimeType;
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class LazyGeometryTest {
+
+    @Test
+    public void testEnvelopeLittleEndian() {
+        Envelope e = LazyGeometry.envelope(header(ByteOrder.LITTLE_ENDIAN, 1, 1, 2, 3, 4));
+        assertEquals(new Envelope(1, 2, 3, 4), e);
+    }
+
+    @Test
+    public void testEnvelopeBigEndianXYZ() {
+        Envelope e = LazyGeometry.envelope(header(ByteOrder.BIG_ENDIAN, 2, -10, 10, -5, 5, 0, 100));
+        assertEquals(new Envelope(-10, 10, -5, 5), e);
+    }
+
+    @Test
+    public void testNoEnvelope() {
+        assertNull(LazyGeometry.envelope(header(ByteOrder.LITTLE_ENDIAN, 0)));
+    }
+
+    @Test
+    public void testEmpty() {
+        byte[] blob = header(ByteOrder.LITTLE_ENDIAN, 0);
+        blob[3] |= 0x10;
+        assertTrue(LazyGeometry.envelope(blob).isNull());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotGeoPackage() {
+        LazyGeometry.envelope(new byte[]{0, 1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    byte[] header(ByteOrder order, int indicator, double... envelope) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + envelope.length * 8).order(order);
+        buf.put((byte) 'G').put((byte) 'P').put((byte) 0);
+        buf.put((byte) ((indicator << 1) | (order == ByteOrder.LITTLE_ENDIAN ? 1 : 0)));
+        buf.putInt(4326);
+        for (double d : envelope) {
+            buf.putDouble(d);
+        }
+        return buf.array();
+    }
+}
@@ -0,0 +1,52 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+public class QueryCacheTest {
+
+    @Test
+    public void testTable() {
+        assertEquals("roads", QueryCache.table("INSERT INTO roads (name) VALUES (?)"));
+        assertEquals("roads", QueryCache.table("  insert or replace into main.roads VALUES (?)"));
+        assertEquals("my \"roads\"", QueryCache.table("UPDATE \"my \"\"roads\"\"\" SET a = 1"));
+        assertEquals("roads", QueryCache.table("DELETE FROM \"roads\" WHERE fid = ?"));
+        assertEquals("roads", QueryCache.table("REPLACE INTO roads VALUES (?)"));
+        assertNull(QueryCache.table("SELECT * FROM roads"));
+        assertNull(QueryCache.table("CREATE TABLE roads (fid INTEGER)"));
+    }
+
+    @Test
+    public void testQuantize() {
+        Envelope e = QueryCache.Key.quantize(new Envelope(1.1, 8.9, 2.3, 4.2));
+        assertTrue(e.contains(new Envelope(1.1, 8.9, 2.3, 4.2)));
+        assertEquals(new Envelope(0, 10, 2, 6), e);
+
+        // small pans map to the same box
+        assertEquals(e, QueryCache.Key.quantize(new Envelope(1.3, 9.1, 2.4, 4.3)));
+        assertEquals(new QueryCache.Key("roads", new Envelope(1.1, 8.9, 2.3, 4.2), null,
+            Arrays.asList("geom")), new QueryCache.Key("roads", new Envelope(1.3, 9.1, 2.4, 4.3),
+            null, Arrays.asList("geom")));
+    }
+}
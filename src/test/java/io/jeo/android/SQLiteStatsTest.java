@@ -0,0 +1,67 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SQLiteStatsTest {
+
+    @Test
+    public void testHistogram() {
+        SQLiteStats stats = new SQLiteStats();
+        stats.record("SELECT 1", millis(0), 1);
+        stats.record("SELECT 1", millis(3), 1);
+        stats.record("SELECT 2", millis(2000), 10);
+
+        SQLiteStats.Histogram total = stats.total();
+        assertEquals(3, total.count());
+        assertEquals(12, total.rows());
+        assertEquals(1, total.counts()[0]);
+        assertEquals(1, total.counts()[2]);
+        assertEquals(1, total.counts()[SQLiteStats.BUCKETS.length]);
+
+        assertEquals(2, stats.statements().get("SELECT 1").count());
+        assertEquals(2000, stats.statements().get("SELECT 2").maxMillis(), 0.1);
+    }
+
+    @Test
+    public void testSlowQueries() {
+        SQLiteStats stats = new SQLiteStats();
+        stats.setSlowQueryThreshold(50);
+
+        assertFalse(stats.record("SELECT 1", millis(10), 1));
+        assertTrue(stats.record("SELECT 2", millis(60), 1));
+
+        for (int i = 0; i < SQLiteStats.MAX_SLOW_QUERIES + 5; i++) {
+            stats.slow("SELECT " + i, millis(60), 1, Arrays.asList("SCAN TABLE foo"));
+        }
+        assertEquals(SQLiteStats.MAX_SLOW_QUERIES, stats.slowQueries().size());
+        assertEquals("SELECT 5", stats.slowQueries().get(0).sql);
+
+        stats.setSlowQueryThreshold(0);
+        assertFalse(stats.record("SELECT 2", millis(60), 1));
+    }
+
+    long millis(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+}
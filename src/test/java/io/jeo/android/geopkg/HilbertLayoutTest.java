@@ -0,0 +1,55 @@
+/* Copyright 2013 The jeo project. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.jeo.android.geopkg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HilbertLayoutTest {
+
+    @Test
+    public void testFirstOrder() {
+        assertEquals(0, HilbertLayout.hilbert(1, 0, 0));
+        assertEquals(1, HilbertLayout.hilbert(1, 0, 1));
+        assertEquals(2, HilbertLayout.hilbert(1, 1, 1));
+        assertEquals(3, HilbertLayout.hilbert(1, 1, 0));
+    }
+
+    @Test
+    public void testContinuous() {
+        int order = 4, n = 1 << order;
+        int[][] cells = new int[n * n][];
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                cells[(int) HilbertLayout.hilbert(order, x, y)] = new int[]{x, y};
+            }
+        }
+
+        // every cell is visited once, and consecutive cells are adjacent
+        Set<Integer> seen = new HashSet<Integer>();
+        for (int d = 0; d < cells.length; d++) {
+            assertTrue(seen.add(cells[d][0] * n + cells[d][1]));
+            if (d > 0) {
+                assertEquals(1, Math.abs(cells[d][0] - cells[d - 1][0])
+                    + Math.abs(cells[d][1] - cells[d - 1][1]));
+            }
+        }
+    }
+}